@@ -54,6 +54,7 @@ import android.widget.CompoundButton;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.Collections;
 import java.util.List;
 
 public class ActivityMain extends AppCompatActivity implements SharedPreferences.OnSharedPreferenceChangeListener {
@@ -182,11 +183,7 @@ public class ActivityMain extends AppCompatActivity implements SharedPreferences
         prefs.registerOnSharedPreferenceChangeListener(this);
 
         // Listen for added/removed applications
-        IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
-        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
-        intentFilter.addDataScheme("package");
-        registerReceiver(packageChangedReceiver, intentFilter);
+        RuleRepository.addListener(packagesChangedListener);
 
         // First use
         if (!initialized) {
@@ -234,7 +231,7 @@ public class ActivityMain extends AppCompatActivity implements SharedPreferences
 
         PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(this);
 
-        unregisterReceiver(packageChangedReceiver);
+        RuleRepository.removeListener(packagesChangedListener);
 
         if (dialogFirst != null) {
             dialogFirst.dismiss();
@@ -310,11 +307,10 @@ public class ActivityMain extends AppCompatActivity implements SharedPreferences
             recreate();
     }
 
-    private BroadcastReceiver packageChangedReceiver = new BroadcastReceiver() {
+    private RuleRepository.Listener packagesChangedListener = new RuleRepository.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Log.i(TAG, "Received " + intent);
-            Util.logExtras(intent);
+        public void onPackagesChanged() {
+            Log.i(TAG, "Packages changed");
             updateApplicationList();
         }
     };
@@ -336,7 +332,11 @@ public class ActivityMain extends AppCompatActivity implements SharedPreferences
 
             @Override
             protected List<Rule> doInBackground(Object... arg) {
-                return Rule.getRules(false, TAG, ActivityMain.this);
+                List<Rule> listRule = RuleRepository.getRules(false, ActivityMain.this);
+                for (Rule rule : listRule)
+                    rule.getPresentation(ActivityMain.this);
+                Collections.sort(listRule);
+                return listRule;
             }
 
             @Override
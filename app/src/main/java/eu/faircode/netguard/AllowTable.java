@@ -0,0 +1,76 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.List;
+
+// The applications allowed to bypass the tunnel for each combination of metered, interactive and roaming,
+// evaluated once for a list of rules and stored as bitsets indexed by the position of the rule
+public class AllowTable {
+    public static final int STATES = 8;
+
+    private final String[] packages;
+    private final int[] uids;
+    private final long[][] sets = new long[STATES][];
+    private final int[] counts = new int[STATES];
+
+    public AllowTable(List<Rule> listRule) {
+        packages = new String[listRule.size()];
+        uids = new int[packages.length];
+        int words = (packages.length + 63) / 64;
+        for (int state = 0; state < STATES; state++)
+            sets[state] = new long[words];
+
+        for (int i = 0; i < packages.length; i++) {
+            Rule rule = listRule.get(i);
+            packages[i] = rule.info.packageName;
+            uids[i] = rule.info.applicationInfo.uid;
+            for (int state = 0; state < STATES; state++)
+                if (isAllowed(rule, (state & 4) != 0, (state & 2) != 0, (state & 1) != 0)) {
+                    sets[state][i >>> 6] |= 1L << (i & 63);
+                    counts[state]++;
+                }
+        }
+    }
+
+    public static int getState(boolean metered, boolean interactive, boolean roaming) {
+        return (metered ? 4 : 0) | (interactive ? 2 : 0) | (roaming ? 1 : 0);
+    }
+
+    private static boolean isAllowed(Rule rule, boolean metered, boolean interactive, boolean roaming) {
+        boolean blocked = (metered ? rule.other_blocked : rule.wifi_blocked);
+        boolean screen = (metered ? rule.screen_other : rule.screen_wifi);
+        return ((!blocked || (screen && interactive)) && (!metered || !(rule.roaming && roaming)));
+    }
+
+    public void fill(TunnelConfig config, int state) {
+        long[] set = sets[state];
+        for (int w = 0; w < set.length; w++)
+            for (long bits = set[w]; bits != 0; bits &= bits - 1) {
+                int i = w * 64 + Long.numberOfTrailingZeros(bits);
+                config.allow(packages[i], uids[i]);
+            }
+        config.blocked = packages.length - counts[state];
+    }
+
+    public int size() {
+        return packages.length;
+    }
+}
@@ -0,0 +1,67 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Fixed set of preallocated direct buffers
+// The kernel can read into and write from direct buffers without an extra copy
+public class BufferPool {
+    private final ByteBuffer[] buffers;
+    private final int size;
+    private int available;
+
+    public BufferPool(int count, int size) {
+        this.buffers = new ByteBuffer[count];
+        this.size = size;
+        for (int i = 0; i < count; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(size);
+            buffers[i].order(ByteOrder.BIG_ENDIAN);
+        }
+        available = count;
+    }
+
+    // Returns null when all buffers are in use
+    public synchronized ByteBuffer acquire() {
+        if (available == 0)
+            return null;
+        ByteBuffer buffer = buffers[--available];
+        buffers[available] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        buffers[available++] = buffer;
+    }
+
+    public synchronized int getAvailable() {
+        return available;
+    }
+
+    public int getSize() {
+        return buffers.length;
+    }
+
+    public int getBufferSize() {
+        return size;
+    }
+}
@@ -0,0 +1,70 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.ByteBuffer;
+
+// https://tools.ietf.org/html/rfc1071
+// Sums are kept unfolded in a long, so partial sums can be added together
+// and carries only need to be folded once at the end
+public class Checksum {
+    public static long sum(ByteBuffer buffer, int position, int length, long sum) {
+        int end = position + length;
+        while (position + 4 <= end) {
+            sum += buffer.getInt(position) & 0xFFFFFFFFL;
+            position += 4;
+        }
+        if (position + 2 <= end) {
+            sum += buffer.getShort(position) & 0xFFFF;
+            position += 2;
+        }
+        if (position < end)
+            sum += (buffer.get(position) & 0xFF) << 8;
+        return sum;
+    }
+
+    public static long sum(byte[] data, long sum) {
+        int i = 0;
+        for (; i + 1 < data.length; i += 2)
+            sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+        if (i < data.length)
+            sum += (data[i] & 0xFF) << 8;
+        return sum;
+    }
+
+    public static long pseudo(byte[] source, byte[] destination, int protocol, int length) {
+        return sum(destination, sum(source, 0)) + protocol + length;
+    }
+
+    public static long pseudo4(ByteBuffer buffer, int protocol, int length) {
+        // Source and destination address are adjacent in the IPv4 header
+        return sum(buffer, 12, 8, 0) + protocol + length;
+    }
+
+    public static long pseudo6(ByteBuffer buffer, int protocol, int length) {
+        return sum(buffer, 8, 32, 0) + protocol + length;
+    }
+
+    public static int fold(long sum) {
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        return (int) (~sum & 0xFFFF);
+    }
+}
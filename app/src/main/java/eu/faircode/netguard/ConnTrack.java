@@ -0,0 +1,379 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+// Remembers flows by 5-tuple, so later packets of a flow are decided with one probe
+// Entries live in fixed arrays, indexed by an open addressing table of entry numbers
+// Idle flows expire through a two level timer wheel, when full the flow expiring first is evicted
+public class ConnTrack {
+    public static final int DROP = 0;
+    public static final int RESET = 1;
+    public static final int UNREACHABLE = 2;
+
+    private static final int EMPTY = -1;
+
+    private static final long TICK = 1000; // milliseconds
+    private static final int SLOTS = 64; // per level
+    private static final int SPAN = SLOTS * SLOTS; // ticks
+
+    private final int max;
+    private final long tcpTimeout;
+    private final long udpTimeout;
+
+    // Entries, a used entry is always scheduled in the timer wheel
+    private final long[] srcHigh;
+    private final long[] srcLow;
+    private final long[] dstHigh;
+    private final long[] dstLow;
+    private final int[] ports;
+    private final byte[] protocols;
+    private final int[] hashes;
+    private final int[] uids;
+    private final byte[] verdicts;
+    private final long[] firstSeen;
+    private final long[] lastSeen;
+    private final long[] packets;
+    private final long[] bytes;
+
+    // Free entry numbers
+    private final int[] free;
+    private int freeCount;
+
+    // Open addressing table of entry numbers
+    private final int[] index;
+    private final int mask;
+
+    // Timer wheel, level 0 has one slot per tick, level 1 one slot per SLOTS ticks
+    private final int[] heads = new int[2 * SLOTS];
+    private final int[] next;
+    private final int[] prev;
+    private final short[] slots;
+    private long currentTick = -1;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long added = 0;
+    private long expired = 0;
+    private long evicted = 0;
+
+    public ConnTrack(int max, long tcpTimeout, long udpTimeout) {
+        this.max = max;
+        this.tcpTimeout = tcpTimeout;
+        this.udpTimeout = udpTimeout;
+
+        srcHigh = new long[max];
+        srcLow = new long[max];
+        dstHigh = new long[max];
+        dstLow = new long[max];
+        ports = new int[max];
+        protocols = new byte[max];
+        hashes = new int[max];
+        uids = new int[max];
+        verdicts = new byte[max];
+        firstSeen = new long[max];
+        lastSeen = new long[max];
+        packets = new long[max];
+        bytes = new long[max];
+        next = new int[max];
+        prev = new int[max];
+        slots = new short[max];
+
+        free = new int[max];
+        for (int i = 0; i < max; i++)
+            free[i] = max - 1 - i;
+        freeCount = max;
+
+        int capacity = 16;
+        while (capacity < max * 2)
+            capacity <<= 1;
+        index = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+            index[i] = EMPTY;
+        for (int i = 0; i < heads.length; i++)
+            heads[i] = EMPTY;
+        for (int i = 0; i < max; i++)
+            slots[i] = -1;
+    }
+
+    // Returns the entry of the flow of the packet and counts the packet, or -1
+    public int find(PacketView view, long now) {
+        long sh = high(view, view.getSourceAddressOffset());
+        long sl = low(view, view.getSourceAddressOffset());
+        long dh = high(view, view.getDestinationAddressOffset());
+        long dl = low(view, view.getDestinationAddressOffset());
+        int port = ports(view);
+        int protocol = view.getProtocol();
+        int hash = hash(sh, sl, dh, dl, port, protocol);
+
+        for (int i = hash & mask; index[i] != EMPTY; i = (i + 1) & mask) {
+            int e = index[i];
+            if (hashes[e] == hash && srcLow[e] == sl && dstLow[e] == dl && ports[e] == port &&
+                    srcHigh[e] == sh && dstHigh[e] == dh && protocols[e] == (byte) protocol) {
+                hits++;
+                lastSeen[e] = now;
+                packets[e]++;
+                bytes[e] += view.getLength();
+                return e;
+            }
+        }
+
+        misses++;
+        return -1;
+    }
+
+    // Adds the flow of the packet, evicting the flow expiring first when full
+    public int add(PacketView view, int uid, int verdict, long now) {
+        if (currentTick < 0)
+            currentTick = now / TICK;
+
+        if (freeCount == 0)
+            evict();
+
+        int e = free[--freeCount];
+        srcHigh[e] = high(view, view.getSourceAddressOffset());
+        srcLow[e] = low(view, view.getSourceAddressOffset());
+        dstHigh[e] = high(view, view.getDestinationAddressOffset());
+        dstLow[e] = low(view, view.getDestinationAddressOffset());
+        ports[e] = ports(view);
+        protocols[e] = (byte) view.getProtocol();
+        hashes[e] = hash(srcHigh[e], srcLow[e], dstHigh[e], dstLow[e], ports[e], view.getProtocol());
+        uids[e] = uid;
+        verdicts[e] = (byte) verdict;
+        firstSeen[e] = now;
+        lastSeen[e] = now;
+        packets[e] = 1;
+        bytes[e] = view.getLength();
+
+        int i = hashes[e] & mask;
+        while (index[i] != EMPTY)
+            i = (i + 1) & mask;
+        index[i] = e;
+
+        schedule(e);
+        added++;
+        return e;
+    }
+
+    public int getVerdict(int e) {
+        return verdicts[e];
+    }
+
+    public int size() {
+        return max - freeCount;
+    }
+
+    // Advances the timer wheel and removes flows idle for longer than their timeout
+    public void expire(long now) {
+        long tick = now / TICK;
+        if (currentTick < 0 || tick <= currentTick)
+            return;
+
+        if (tick - currentTick > SPAN) {
+            // Slept longer than any timeout
+            for (int e = 0; e < max; e++)
+                if (slots[e] >= 0) {
+                    remove(e);
+                    expired++;
+                }
+            currentTick = tick;
+            return;
+        }
+
+        while (currentTick < tick) {
+            currentTick++;
+
+            // Move the flows of the next level 1 slot down
+            if ((currentTick & (SLOTS - 1)) == 0) {
+                int slot = SLOTS + (int) ((currentTick / SLOTS) & (SLOTS - 1));
+                int e = heads[slot];
+                heads[slot] = EMPTY;
+                while (e != EMPTY) {
+                    int n = next[e];
+                    slots[e] = -1;
+                    fire(e, now);
+                    e = n;
+                }
+            }
+
+            int slot = (int) (currentTick & (SLOTS - 1));
+            int e = heads[slot];
+            heads[slot] = EMPTY;
+            while (e != EMPTY) {
+                int n = next[e];
+                slots[e] = -1;
+                fire(e, now);
+                e = n;
+            }
+        }
+    }
+
+    // Expiry is lazy: a flow seen again after it was scheduled is just scheduled again
+    private void fire(int e, long now) {
+        if (lastSeen[e] + timeout(e) <= now) {
+            remove(e);
+            expired++;
+        } else
+            schedule(e);
+    }
+
+    private void schedule(int e) {
+        long tick = (lastSeen[e] + timeout(e)) / TICK;
+        if (tick <= currentTick)
+            tick = currentTick + 1;
+
+        int slot;
+        if (tick - currentTick < SLOTS)
+            slot = (int) (tick & (SLOTS - 1));
+        else {
+            long epoch = Math.min(tick / SLOTS, currentTick / SLOTS + SLOTS - 1);
+            slot = SLOTS + (int) (epoch & (SLOTS - 1));
+        }
+
+        slots[e] = (short) slot;
+        prev[e] = EMPTY;
+        next[e] = heads[slot];
+        if (heads[slot] != EMPTY)
+            prev[heads[slot]] = e;
+        heads[slot] = e;
+    }
+
+    private void unschedule(int e) {
+        if (slots[e] < 0)
+            return;
+        if (prev[e] == EMPTY)
+            heads[slots[e]] = next[e];
+        else
+            next[prev[e]] = next[e];
+        if (next[e] != EMPTY)
+            prev[next[e]] = prev[e];
+        slots[e] = -1;
+    }
+
+    private void evict() {
+        // Level 0 in order of expiry first
+        for (int i = 1; i <= SLOTS; i++) {
+            int e = heads[(int) ((currentTick + i) & (SLOTS - 1))];
+            if (e != EMPTY) {
+                remove(e);
+                evicted++;
+                return;
+            }
+        }
+        for (int i = 1; i <= SLOTS; i++) {
+            int e = heads[SLOTS + (int) ((currentTick / SLOTS + i) & (SLOTS - 1))];
+            if (e != EMPTY) {
+                remove(e);
+                evicted++;
+                return;
+            }
+        }
+    }
+
+    private void remove(int e) {
+        unschedule(e);
+
+        int i = hashes[e] & mask;
+        while (index[i] != e)
+            i = (i + 1) & mask;
+
+        // Backward shift deletion keeps probe sequences unbroken without tombstones
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (index[j] == EMPTY)
+                break;
+            int k = hashes[index[j]] & mask;
+            if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+                index[i] = index[j];
+                i = j;
+            }
+        }
+        index[i] = EMPTY;
+
+        free[freeCount++] = e;
+    }
+
+    private long timeout(int e) {
+        return (protocols[e] == PacketView.TCP ? tcpTimeout : udpTimeout);
+    }
+
+    private static long high(PacketView view, int offset) {
+        return (view.getVersion() == 4 ? 0 : view.getBuffer().getLong(offset));
+    }
+
+    private static long low(PacketView view, int offset) {
+        if (view.getVersion() == 4)
+            return ProcNetParser.MAPPED | (view.getBuffer().getInt(offset) & 0xFFFFFFFFL);
+        else
+            return view.getBuffer().getLong(offset + 8);
+    }
+
+    private static int ports(PacketView view) {
+        if (view.isTCP() || view.isUDP())
+            return view.getBuffer().getInt(view.getHeaderLength());
+        return 0;
+    }
+
+    private static int hash(long sh, long sl, long dh, long dl, int ports, int protocol) {
+        long h = ((sh * 31 + sl) * 31 + dh) * 31 + dl;
+        h = (h * 31 + ports) * 31 + protocol;
+        return (int) ((h * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    // The flows with the most packets, for the stats
+    public String getTop(int count, long now) {
+        int[] top = new int[count];
+        int n = 0;
+        for (int e = 0; e < max; e++)
+            if (slots[e] >= 0 && (n < count || packets[e] > packets[top[n - 1]])) {
+                int i = (n < count ? n++ : n - 1);
+                while (i > 0 && packets[top[i - 1]] < packets[e]) {
+                    top[i] = top[i - 1];
+                    i--;
+                }
+                top[i] = e;
+            }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            int e = top[i];
+            if (i > 0)
+                sb.append(", ");
+            sb.append("uid=").append(uids[e])
+                    .append(" protocol=").append(protocols[e] & 0xFF)
+                    .append(" port=").append(ports[e] & 0xFFFF)
+                    .append(" packets=").append(packets[e])
+                    .append(" bytes=").append(bytes[e])
+                    .append(" age=").append((now - firstSeen[e]) / 1000).append('s');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return size() + "/" + max +
+                " hits=" + hits +
+                " misses=" + misses +
+                " added=" + added +
+                " expired=" + expired +
+                " evicted=" + evicted;
+    }
+}
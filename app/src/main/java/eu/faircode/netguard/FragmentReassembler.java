@@ -0,0 +1,262 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.ByteBuffer;
+
+// Reassembles IPv4 datagrams from their fragments
+// https://tools.ietf.org/html/rfc791#section-3.2
+// https://tools.ietf.org/html/rfc815
+// All memory is allocated up front: a fixed number of datagrams, each with a slot in one arena
+// and a bitmap of the 8 byte blocks received, so a fragment flood can't grow the heap
+// Overlapping fragments drop the datagram, like RFC 5722 requires for IPv6
+public class FragmentReassembler {
+    private static final int HEADER = 60; // largest IPv4 header, kept in front of the data of a slot
+
+    private final int max;
+    private final int size;
+    private final long timeout;
+
+    private final byte[] arena;
+    private final long[] blocks; // bitmap of received 8 byte blocks
+    private final int words; // per datagram
+
+    private final boolean[] used;
+    private final int[] sources;
+    private final int[] destinations;
+    private final int[] ids; // identification | protocol << 16
+    private final long[] expires;
+    private final int[] headerLengths; // 0 until the first fragment arrived
+    private final int[] totals; // -1 until the last fragment arrived
+    private int count = 0;
+
+    private long fragments = 0;
+    private long reassembled = 0;
+    private long timedout = 0;
+    private long overlaps = 0;
+    private long full = 0;
+    private long invalid = 0;
+
+    public FragmentReassembler(int max, int size, long timeout) {
+        this.max = max;
+        this.size = size;
+        this.timeout = timeout;
+
+        arena = new byte[max * size];
+        words = ((size - HEADER) / 8 + 63) / 64;
+        blocks = new long[max * words];
+
+        used = new boolean[max];
+        sources = new int[max];
+        destinations = new int[max];
+        ids = new int[max];
+        expires = new long[max];
+        headerLengths = new int[max];
+        totals = new int[max];
+    }
+
+    // Returns true if the fragment completed its datagram, which then replaced the fragment in the buffer
+    public boolean add(ByteBuffer buffer, long now) {
+        fragments++;
+
+        int length = buffer.limit();
+        if (length < 20 || (buffer.get(0) & 0xFF) >> 4 != 4) {
+            invalid++;
+            return false;
+        }
+        int ihl = (buffer.get(0) & 0xF) * 4;
+        int total = buffer.getShort(2) & 0xFFFF;
+        if (ihl < 20 || total < ihl || total > length ||
+                Checksum.fold(Checksum.sum(buffer, 0, ihl, 0)) != 0) {
+            invalid++;
+            return false;
+        }
+
+        int flags = buffer.getShort(6) & 0xFFFF;
+        boolean more = ((flags & 0x2000) != 0);
+        int offset = (flags & 0x1FFF) * 8;
+        int dataLength = total - ihl;
+        if (dataLength == 0 || (more && dataLength % 8 != 0) || offset + dataLength > size - HEADER) {
+            invalid++;
+            return false;
+        }
+
+        int source = buffer.getInt(12);
+        int destination = buffer.getInt(16);
+        int id = (buffer.getShort(4) & 0xFFFF) | (buffer.get(9) & 0xFF) << 16;
+
+        int d = find(source, destination, id);
+        if (d < 0) {
+            d = allocate(now);
+            if (d < 0) {
+                full++;
+                return false;
+            }
+            used[d] = true;
+            sources[d] = source;
+            destinations[d] = destination;
+            ids[d] = id;
+            expires[d] = now + timeout;
+            headerLengths[d] = 0;
+            totals[d] = -1;
+            for (int w = 0; w < words; w++)
+                blocks[d * words + w] = 0;
+            count++;
+        }
+
+        int first = offset / 8;
+        int last = (offset + dataLength + 7) / 8;
+
+        // Nothing can follow the last fragment
+        if (totals[d] >= 0 && offset + dataLength > totals[d]) {
+            invalid++;
+            return false;
+        }
+        if (!more) {
+            if (totals[d] >= 0 || any(d, last)) {
+                overlaps++;
+                remove(d);
+                return false;
+            }
+            totals[d] = offset + dataLength;
+        }
+
+        // Mark the blocks of this fragment
+        for (int i = first; i < last; i++) {
+            int w = d * words + (i >>> 6);
+            long bit = 1L << (i & 63);
+            if ((blocks[w] & bit) != 0) {
+                overlaps++;
+                remove(d);
+                return false;
+            }
+            blocks[w] |= bit;
+        }
+
+        int base = d * size;
+        buffer.position(ihl);
+        buffer.get(arena, base + HEADER + offset, dataLength);
+        if (offset == 0) {
+            buffer.position(0);
+            buffer.get(arena, base, ihl);
+            headerLengths[d] = ihl;
+        }
+        buffer.position(0);
+
+        if (totals[d] < 0 || headerLengths[d] == 0 || !all(d, (totals[d] + 7) / 8))
+            return false;
+
+        // Complete, build the datagram from the header of the first fragment
+        int hl = headerLengths[d];
+        int newLength = hl + totals[d];
+        buffer.limit(buffer.capacity());
+        buffer.position(0);
+        buffer.put(arena, base, hl);
+        buffer.put(arena, base + HEADER, totals[d]);
+        buffer.position(0);
+        buffer.limit(newLength);
+
+        buffer.putShort(2, (short) newLength);
+        buffer.putShort(6, (short) 0);
+        buffer.putShort(10, (short) 0);
+        buffer.putShort(10, (short) Checksum.fold(Checksum.sum(buffer, 0, hl, 0)));
+
+        remove(d);
+        reassembled++;
+        return true;
+    }
+
+    // Drops the datagrams that weren't completed in time
+    public void expire(long now) {
+        if (count == 0)
+            return;
+        for (int d = 0; d < max; d++)
+            if (used[d] && expires[d] <= now) {
+                remove(d);
+                timedout++;
+            }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Any block from the given one on received
+    private boolean any(int d, int from) {
+        int base = d * words;
+        for (int w = from >>> 6; w < words; w++) {
+            long bits = blocks[base + w];
+            if (w == from >>> 6)
+                bits &= -1L << (from & 63);
+            if (bits != 0)
+                return true;
+        }
+        return false;
+    }
+
+    // All blocks before the given one received
+    private boolean all(int d, int to) {
+        int base = d * words;
+        for (int w = 0; w < to >>> 6; w++)
+            if (blocks[base + w] != -1L)
+                return false;
+        long mask = (1L << (to & 63)) - 1;
+        return ((to & 63) == 0 || (blocks[base + (to >>> 6)] & mask) == mask);
+    }
+
+    private int find(int source, int destination, int id) {
+        for (int d = 0; d < max; d++)
+            if (used[d] && ids[d] == id && sources[d] == source && destinations[d] == destination)
+                return d;
+        return -1;
+    }
+
+    // A new datagram only replaces one that has timed out, a flood can't push out datagrams in progress
+    private int allocate(long now) {
+        int expired = -1;
+        for (int d = 0; d < max; d++) {
+            if (!used[d])
+                return d;
+            if (expires[d] <= now && expired < 0)
+                expired = d;
+        }
+        if (expired >= 0) {
+            remove(expired);
+            timedout++;
+        }
+        return expired;
+    }
+
+    private void remove(int d) {
+        used[d] = false;
+        count--;
+    }
+
+    @Override
+    public String toString() {
+        return count + "/" + max +
+                " fragments=" + fragments +
+                " reassembled=" + reassembled +
+                " timeout=" + timedout +
+                " overlaps=" + overlaps +
+                " full=" + full +
+                " invalid=" + invalid;
+    }
+}
@@ -0,0 +1,268 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructTimeval;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Asks the kernel for the owner of exactly one socket with a NETLINK_SOCK_DIAG (inet_diag) query
+// The cost doesn't depend on the number of open sockets
+// SELinux policy denies this to apps on some devices, use create() to probe
+public class NetlinkUidResolver implements UidResolver {
+    private static final String TAG = "NetGuard.Netlink";
+
+    private static final int NETLINK_SOCK_DIAG = 4;
+    private static final int SOCK_DIAG_BY_FAMILY = 20;
+    private static final int NLMSG_ERROR = 2;
+    private static final int NLM_F_REQUEST = 1;
+    private static final int REQUEST_LENGTH = 16 + 56; // nlmsghdr + inet_diag_req_v2
+    private static final int UID_OFFSET = 16 + 64; // nlmsghdr + inet_diag_msg up to idiag_uid
+    private static final long TIMEOUT = 100; // milliseconds
+
+    private final FileDescriptor fd;
+    // Netlink headers are in host byte order, ports and addresses in network byte order
+    private final ByteBuffer request = ByteBuffer.allocate(REQUEST_LENGTH).order(ByteOrder.nativeOrder());
+    private final ByteBuffer response = ByteBuffer.allocate(8192).order(ByteOrder.nativeOrder());
+    private int seq = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long errors = 0;
+    private long queryNanos = 0;
+
+    private NetlinkUidResolver(FileDescriptor fd) {
+        this.fd = fd;
+    }
+
+    // Returns null when sock_diag can't be used
+    public static NetlinkUidResolver create() {
+        FileDescriptor fd = null;
+        try {
+            fd = Os.socket(OsConstants.AF_NETLINK, OsConstants.SOCK_DGRAM, NETLINK_SOCK_DIAG);
+            Os.setsockoptTimeval(fd, OsConstants.SOL_SOCKET, OsConstants.SO_RCVTIMEO, StructTimeval.fromMillis(TIMEOUT));
+
+            // Without tcp_diag or udp_diag every query is answered with ENOENT,
+            // so the resolver must find sockets of its own
+            NetlinkUidResolver resolver = new NetlinkUidResolver(fd);
+            if (!resolver.probe(PacketView.TCP) || !resolver.probe(PacketView.UDP))
+                throw new IllegalStateException("own sockets not found");
+            return resolver;
+        } catch (Throwable ex) {
+            Log.w(TAG, "sock_diag not available: " + ex.toString());
+            if (fd != null)
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException ignored) {
+                }
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized int lookup(PacketView view) {
+        long start = System.nanoTime();
+        try {
+            ByteBuffer buffer = view.getBuffer();
+            int protocol = view.getProtocol();
+            int source = view.getSourceAddressOffset();
+            int destination = view.getDestinationAddressOffset();
+            int sport = view.getSourcePort();
+            int dport = view.getDestinationPort();
+            if (view.isUDP()) {
+                // The kernel looks up datagram sockets with source and destination swapped
+                int address = source;
+                source = destination;
+                destination = address;
+                int port = sport;
+                sport = dport;
+                dport = port;
+            }
+
+            int uid;
+            if (view.getVersion() == 4)
+                uid = query4(protocol, buffer, source, destination, sport, dport);
+            else
+                uid = query(OsConstants.AF_INET6, protocol, buffer, source, destination, sport, dport, false);
+
+            if (uid < 0)
+                misses++;
+            else
+                hits++;
+            return uid;
+        } catch (Throwable ex) {
+            errors++;
+            Log.w(TAG, ex.toString());
+            return -1;
+        } finally {
+            queryNanos += System.nanoTime() - start;
+        }
+    }
+
+    // Looks up a loopback socket of this app, which can be listed as IPv4 or as dual stack IPv6
+    private boolean probe(int protocol) throws IOException, ErrnoException {
+        InetAddress loopback = InetAddress.getByAddress(new byte[]{127, 0, 0, 1});
+        ByteBuffer addresses = ByteBuffer.allocate(8); // loopback, any
+        addresses.put(loopback.getAddress());
+
+        Closeable socket = null;
+        int uid;
+        try {
+            if (protocol == PacketView.TCP) {
+                ServerSocket server = new ServerSocket(0, 1, loopback);
+                socket = server;
+                uid = query4(protocol, addresses, 0, 4, server.getLocalPort(), 0);
+            } else {
+                // Datagram sockets are looked up with source and destination swapped, like in lookup
+                DatagramSocket datagram = new DatagramSocket(0, loopback);
+                socket = datagram;
+                uid = query4(protocol, addresses, 4, 0, 0, datagram.getLocalPort());
+            }
+        } finally {
+            if (socket != null)
+                socket.close();
+        }
+
+        Log.i(TAG, "Probe protocol=" + protocol + " uid=" + uid + "/" + Process.myUid());
+        return (uid == Process.myUid());
+    }
+
+    // Exact queries don't depend on a snapshot
+    @Override
+    public boolean refresh(PacketView view, long after) {
+        return false;
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            Os.close(fd);
+        } catch (ErrnoException ex) {
+            Log.w(TAG, ex.toString());
+        }
+    }
+
+    private int query4(int protocol, ByteBuffer buffer, int source, int destination,
+                       int sport, int dport) throws ErrnoException, InterruptedIOException {
+        int uid = query(OsConstants.AF_INET, protocol, buffer, source, destination, sport, dport, false);
+        // Dual stack sockets are listed as IPv6 with IPv4-mapped addresses
+        if (uid < 0)
+            uid = query(OsConstants.AF_INET6, protocol, buffer, source, destination, sport, dport, true);
+        return uid;
+    }
+
+    // Returns -1 when the kernel doesn't know the socket
+    private int query(int family, int protocol, ByteBuffer buffer, int source, int destination,
+                      int sport, int dport, boolean mapped) throws ErrnoException, InterruptedIOException {
+        int length = (family == OsConstants.AF_INET || mapped ? 4 : 16);
+
+        request.clear();
+
+        // struct nlmsghdr
+        request.putInt(REQUEST_LENGTH);
+        request.putShort((short) SOCK_DIAG_BY_FAMILY);
+        request.putShort((short) NLM_F_REQUEST);
+        request.putInt(++seq);
+        request.putInt(0); // port id of the kernel
+
+        // struct inet_diag_req_v2
+        request.put((byte) family);
+        request.put((byte) protocol);
+        request.put((byte) 0); // extensions
+        request.put((byte) 0); // padding
+        request.putInt(-1); // all states
+
+        // struct inet_diag_sockid
+        putPort(sport);
+        putPort(dport);
+        putAddress(buffer, source, length, mapped);
+        putAddress(buffer, destination, length, mapped);
+        request.putInt(0); // any interface
+        request.putInt(-1); // INET_DIAG_NOCOOKIE
+        request.putInt(-1);
+
+        Os.write(fd, request.array(), 0, REQUEST_LENGTH);
+
+        while (true) {
+            int read = Os.read(fd, response.array(), 0, response.capacity());
+            if (read < 16)
+                throw new ErrnoException("read", OsConstants.EIO);
+
+            // Skip late answers to queries that timed out
+            if (response.getInt(8) != seq)
+                continue;
+
+            int type = response.getShort(4) & 0xFFFF;
+            if (type == NLMSG_ERROR) {
+                int error = (read < 20 ? OsConstants.EIO : -response.getInt(16));
+                if (error == OsConstants.ENOENT)
+                    return -1;
+                throw new ErrnoException("sock_diag", error);
+            }
+
+            if (type == SOCK_DIAG_BY_FAMILY && read >= UID_OFFSET + 4)
+                return response.getInt(UID_OFFSET);
+            return -1;
+        }
+    }
+
+    private void putPort(int port) {
+        request.put((byte) (port >> 8));
+        request.put((byte) port);
+    }
+
+    // Fills all 16 bytes of an address field, IPv4 addresses go in the first word unless mapped
+    private void putAddress(ByteBuffer buffer, int offset, int length, boolean mapped) {
+        int start = request.position();
+        for (int i = 0; i < 16; i++)
+            request.put(start + i, (byte) 0);
+        int at = start;
+        if (mapped) {
+            request.put(start + 10, (byte) 0xFF);
+            request.put(start + 11, (byte) 0xFF);
+            at = start + 12;
+        }
+        for (int i = 0; i < length; i++)
+                request.put(at + i, buffer.get(offset + i));
+        request.position(start + 16);
+    }
+
+    @Override
+    public synchronized String toString() {
+        long queries = hits + misses + errors;
+        return "sock_diag hits=" + hits +
+                " misses=" + misses +
+                " errors=" + errors +
+                " query avg=" + (queries == 0 ? 0 : queryNanos / queries / 1000) + " us";
+    }
+}
@@ -0,0 +1,108 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import android.util.Log;
+
+// Bounds the work done per interval, so an app in a reconnect loop can't degrade the tunnel
+// FULL: resolve uid, log and reply
+// SHED: reply only, for repeated flows and when the work budget is used up
+// DROP: no reply at all, when the reply budget is used up
+public class OverloadPolicy {
+    private static final String TAG = "NetGuard.Overload";
+
+    public static final int FULL = 0;
+    public static final int SHED = 1;
+    public static final int DROP = 2;
+
+    private static final int RECENT = 256; // power of two
+    private static final long REPEAT_MILLIS = 10 * 1000L;
+
+    private final long interval;
+    private final int workBudget;
+    private final int replyBudget;
+
+    private long intervalStart = 0;
+    private int work = 0;
+    private int replies = 0;
+    private boolean shedding = false;
+
+    private final int[] recentFlow = new int[RECENT];
+    private final long[] recentTime = new long[RECENT];
+
+    private long full = 0;
+    private long shed = 0;
+    private long repeated = 0;
+    private long dropped = 0;
+    private long overloads = 0;
+
+    public OverloadPolicy(long interval, int workBudget, int replyBudget) {
+        this.interval = interval;
+        this.workBudget = workBudget;
+        this.replyBudget = replyBudget;
+    }
+
+    public int admit(int flow, long now) {
+        if (now - intervalStart >= interval) {
+            intervalStart = now;
+            work = 0;
+            replies = 0;
+            shedding = false;
+        }
+
+        if (++replies > replyBudget) {
+            dropped++;
+            return DROP;
+        }
+
+        // Retransmissions of a flow already handled don't need the work again
+        int slot = flow & (RECENT - 1);
+        boolean repeat = (recentFlow[slot] == flow && recentTime[slot] != 0 && now - recentTime[slot] < REPEAT_MILLIS);
+        recentFlow[slot] = flow;
+        recentTime[slot] = now;
+        if (repeat) {
+            repeated++;
+            shed++;
+            return SHED;
+        }
+
+        if (++work > workBudget) {
+            if (!shedding) {
+                shedding = true;
+                overloads++;
+                Log.w(TAG, "Shedding, more than " + workBudget + " flows in " + interval + " ms");
+            }
+            shed++;
+            return SHED;
+        }
+
+        full++;
+        return FULL;
+    }
+
+    @Override
+    public String toString() {
+        return "full=" + full +
+                " shed=" + shed +
+                " repeated=" + repeated +
+                " dropped=" + dropped +
+                " overloads=" + overloads;
+    }
+}
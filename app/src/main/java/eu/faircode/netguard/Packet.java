@@ -19,21 +19,15 @@ package eu.faircode.netguard;
     Copyright 2015 by Marcel Bokhorst (M66B)
 */
 
-import android.util.Log;
-
-import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.Scanner;
 
 public class Packet {
-    private static final String TAG = "NetGuard.Packet";
-
     private ByteBuffer packet;
-    public IPv4Header IPv4;
+    public IPv4Header IPv4 = null;
+    public IPv6Header IPv6 = null;
     public UDPHeader UDP = null;
     public TCP TCP = null;
 
@@ -44,55 +38,86 @@ public class Packet {
         packet = buffer;
 
         try {
-            IPv4 = new IPv4Header(buffer);
-            IPv4.validate();
-
-            if (IPv4.protocol == IPv4.UDP) {
-                UDP = new UDPHeader(buffer);
-                UDP.validate();
-                throw new IOException("UDP not supported");
-            } else if (IPv4.protocol == IPv4.TCP) {
-                TCP = new TCP(IPv4.sourceAddress, IPv4.destinationAddress, buffer);
+            int protocol;
+            int version = (buffer.get(buffer.position()) & 0xFF) >> 4;
+            if (version == 6) {
+                IPv6 = new IPv6Header(buffer);
+                IPv6.validate();
+                protocol = IPv6.protocol;
+            } else {
+                IPv4 = new IPv4Header(buffer);
+                IPv4.validate();
+                protocol = IPv4.protocol;
+            }
+
+            if (protocol == IPv4Header.UDP) {
+                UDP = new UDPHeader(getSourceAddress(), getDestinationAddress(), buffer);
+                UDP.validate(IPv6 != null);
+            } else if (protocol == IPv4Header.TCP) {
+                TCP = new TCP(getSourceAddress(), getDestinationAddress(), buffer);
                 TCP.validate();
             } else
-                throw new IOException("Unsupported protocol=" + IPv4.protocol);
+                throw new IOException("Unsupported protocol=" + protocol);
         } catch (IOException ex) {
             throw new IOException(ex.toString() + " " + this);
         }
     }
 
+    public InetAddress getSourceAddress() {
+        return (this.IPv6 == null ? this.IPv4.sourceAddress : this.IPv6.sourceAddress);
+    }
+
+    public InetAddress getDestinationAddress() {
+        return (this.IPv6 == null ? this.IPv4.destinationAddress : this.IPv6.destinationAddress);
+    }
+
     public void swapAddresses() {
-        InetAddress sourceAddress = this.IPv4.sourceAddress;
-        this.IPv4.sourceAddress = this.IPv4.destinationAddress;
-        this.IPv4.destinationAddress = sourceAddress;
+        if (this.IPv6 == null) {
+            InetAddress sourceAddress = this.IPv4.sourceAddress;
+            this.IPv4.sourceAddress = this.IPv4.destinationAddress;
+            this.IPv4.destinationAddress = sourceAddress;
+        } else {
+            InetAddress sourceAddress = this.IPv6.sourceAddress;
+            this.IPv6.sourceAddress = this.IPv6.destinationAddress;
+            this.IPv6.destinationAddress = sourceAddress;
+        }
         if (this.TCP != null)
             this.TCP.swapPorts();
     }
 
     private void encode(ByteBuffer buffer) {
-        this.IPv4.encode(buffer);
+        if (this.IPv6 == null)
+            this.IPv4.encode(buffer);
+        else
+            this.IPv6.encode(buffer);
+        int pos = buffer.position();
         if (this.TCP != null)
-            this.TCP.encode(this.IPv4.sourceAddress, this.IPv4.destinationAddress, buffer);
+            this.TCP.encode(getSourceAddress(), getDestinationAddress(), buffer);
+        if (this.IPv6 != null) // extension headers are not encoded
+            buffer.putShort(4, (short) (buffer.position() - pos));
+        buffer.limit(buffer.position());
         buffer.position(0);
     }
 
     public void send(FileOutputStream out) throws IOException {
         this.packet = ByteBuffer.allocate(32767);
         encode(this.packet);
-        byte[] r = new byte[this.packet.limit()];
-        this.packet.get(r);
-        out.write(r);
+        out.write(this.packet.array(), 0, this.packet.limit());
     }
 
     public String toShortString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(this.IPv4.sourceAddress);
+        sb.append(getSourceAddress());
         if (this.TCP != null)
             sb.append(':').append(this.TCP.sourcePort);
+        if (this.UDP != null)
+            sb.append(':').append(this.UDP.sourcePort);
         sb.append(" > ");
-        sb.append(this.IPv4.destinationAddress);
+        sb.append(getDestinationAddress());
         if (this.TCP != null)
             sb.append(':').append(this.TCP.destinationPort);
+        if (this.UDP != null)
+            sb.append(':').append(this.UDP.destinationPort).append(" len=").append(this.UDP.data.length);
         if (this.TCP != null) {
             sb.append(" seq=").append(this.TCP.sequenceNumber);
             sb.append(" ack=").append(this.TCP.acknowledgementNumber);
@@ -106,7 +131,7 @@ public class Packet {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("Packet(");
-        sb.append(this.IPv4);
+        sb.append(this.IPv6 == null ? this.IPv4 : this.IPv6);
 
         if (this.UDP != null)
             sb.append(", ").append(this.UDP);
@@ -210,8 +235,9 @@ public class Packet {
             if (optionsLength > 0)
                 buffer.get(this.options);
 
-            buffer.putShort(pos + 10, (short) 0);
-            this.calculatedHeaderChecksum = Util.getChecksum(buffer, pos, buffer.position() - pos);
+            // Leave out the checksum field itself (congruent modulo 0xFFFF)
+            long sum = Checksum.sum(buffer, pos, buffer.position() - pos, 0) - this.headerChecksum;
+            this.calculatedHeaderChecksum = Checksum.fold(sum);
         }
 
         private int getFlags() {
@@ -272,12 +298,133 @@ public class Packet {
         }
     }
 
-    // https://en.wikipedia.org/wiki/User_Datagram_Protocol
-    public class UDPHeader {
-        public UDPHeader(ByteBuffer buffer) {
+    // https://en.wikipedia.org/wiki/IPv6_packet
+    public static class IPv6Header {
+        public byte version;
+        public int trafficClass;
+        public int flowLabel;
+        public int payloadLength;
+        public int nextHeader;
+        public int hopLimit;
+        public InetAddress sourceAddress;
+        public InetAddress destinationAddress;
+        public byte[] extensions;
+        public int protocol; // upper layer
+
+        public IPv6Header(ByteBuffer buffer) throws IOException {
+            int b = buffer.getInt();
+            this.version = (byte) (b >>> 28);
+            this.trafficClass = (b >> 20) & 0xFF;
+            this.flowLabel = b & 0xFFFFF;
+
+            if (this.version != 6)
+                throw new IOException("IPv6: Invalid version=" + this.version);
+
+            this.payloadLength = buffer.getShort() & 0xFFFF;
+            this.nextHeader = buffer.get() & 0xFF;
+            this.hopLimit = buffer.get() & 0xFF;
+
+            byte[] addressBytes = new byte[16];
+            buffer.get(addressBytes);
+            this.sourceAddress = InetAddress.getByAddress(addressBytes);
+
+            buffer.get(addressBytes);
+            this.destinationAddress = InetAddress.getByAddress(addressBytes);
+
+            int next = PacketView.walk(buffer, buffer.position(), this.nextHeader, buffer.limit());
+            if (next < 0)
+                throw new IOException("IPv6: Invalid extension header");
+            this.protocol = next & 0xFF;
+
+            this.extensions = new byte[(next >> 8) - buffer.position()];
+            buffer.get(this.extensions);
+        }
+
+        public void encode(ByteBuffer buffer) {
+            buffer.putInt(this.version << 28 | this.trafficClass << 20 | this.flowLabel);
+            buffer.putShort((short) this.payloadLength);
+            buffer.put((byte) this.protocol);
+            buffer.put((byte) this.hopLimit);
+            buffer.put(this.sourceAddress.getAddress());
+            buffer.put(this.destinationAddress.getAddress());
         }
 
         public void validate() throws IOException {
+            if (this.protocol == PacketView.FRAGMENT)
+                throw new IOException("IPv6: Fragment");
+            if (this.payloadLength < this.extensions.length)
+                throw new IOException("IPv6: Invalid payload length");
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("IPv6Header(");
+            sb.append("version=").append(this.version);
+            sb.append(", trafficClass=").append(this.trafficClass);
+            sb.append(", flowLabel=").append(this.flowLabel);
+            sb.append(", payloadLength=").append(this.payloadLength);
+            sb.append(", nextHeader=").append(this.nextHeader);
+            sb.append(", hopLimit=").append(this.hopLimit);
+            sb.append(", sourceAddress=").append(this.sourceAddress.getHostAddress());
+            sb.append(", destinationAddress=").append(this.destinationAddress.getHostAddress());
+            sb.append(", extensions=" + Util.getHex(this.extensions));
+            sb.append(", protocol=").append(this.protocol);
+            sb.append(')');
+            return sb.toString();
+        }
+    }
+
+    // https://en.wikipedia.org/wiki/User_Datagram_Protocol
+    public static class UDPHeader {
+        public int sourcePort;
+        public int destinationPort;
+        public int length;
+        public int checksum;
+        public byte[] data;
+
+        public int calculatedChecksum;
+
+        public UDPHeader(InetAddress source, InetAddress destination, ByteBuffer buffer) throws IOException {
+            int pos = buffer.position();
+
+            this.sourcePort = buffer.getShort() & 0xFFFF;
+            this.destinationPort = buffer.getShort() & 0xFFFF;
+            this.length = buffer.getShort() & 0xFFFF;
+            this.checksum = buffer.getShort() & 0xFFFF;
+
+            if (this.length < 8 || pos + this.length > buffer.limit())
+                throw new IOException("UDP: Invalid length=" + this.length);
+
+            this.data = new byte[this.length - 8];
+            buffer.get(this.data);
+
+            // Pseudo header and datagram, leaving out the checksum field itself
+            long sum = Checksum.pseudo(source.getAddress(), destination.getAddress(), IPv4Header.UDP, this.length);
+            sum = Checksum.sum(buffer, pos, this.length, sum) - this.checksum;
+            this.calculatedChecksum = Checksum.fold(sum);
+            if (this.calculatedChecksum == 0)
+                this.calculatedChecksum = 0xFFFF;
+        }
+
+        public void validate(boolean ipv6) throws IOException {
+            // The checksum is optional for IPv4 only
+            if (this.checksum == 0 && !ipv6)
+                return;
+            if (this.checksum != this.calculatedChecksum)
+                throw new IOException("UDP: Invalid checksum");
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("UDP(");
+            sb.append("sourcePort=").append(this.sourcePort);
+            sb.append(", destinationPort=").append(this.destinationPort);
+            sb.append(", length=").append(this.length);
+            sb.append(", checksum=").append(this.checksum);
+            sb.append(", data=").append(Util.getHex(this.data));
+            sb.append(", calculatedChecksum=").append(this.calculatedChecksum);
+            sb.append(')');
+            return sb.toString();
         }
     }
 
@@ -349,20 +496,11 @@ public class Packet {
             this.data = new byte[buffer.limit() - buffer.position()];
             buffer.get(this.data);
 
-            buffer.putShort(pos + 16, (short) 0);
-
-            // pseudo header
-            ByteBuffer cc = ByteBuffer.allocate(12 + buffer.position() - pos);
-            cc.put(source.getAddress());
-            cc.put(destination.getAddress());
-            cc.put((byte) 0);
-            cc.put((byte) 6);
-            cc.putShort((short) (buffer.position() - pos));
-            // TODO: combine two checksums
-            for (int i = pos; i < buffer.position(); i++)
-                cc.put(buffer.get(i));
-
-            this.calculatedChecksum = Util.getChecksum(cc, 0, cc.limit());
+            // Pseudo header and segment, leaving out the checksum field itself
+            int length = buffer.position() - pos;
+            long sum = Checksum.pseudo(source.getAddress(), destination.getAddress(), IPv4Header.TCP, length);
+            sum = Checksum.sum(buffer, pos, length, sum) - this.checksum;
+            this.calculatedChecksum = Checksum.fold(sum);
         }
 
         private int getFlagValue() {
@@ -403,16 +541,9 @@ public class Packet {
             buffer.put(this.options);
             buffer.put(this.data);
 
-            ByteBuffer cc = ByteBuffer.allocate(12 + buffer.position() - pos);
-            cc.put(source.getAddress());
-            cc.put(destination.getAddress());
-            cc.put((byte) 0); // reserved
-            cc.put((byte) 6); // protocol=TCP
-            cc.putShort((short) (buffer.position() - pos));
-            // TODO: combine two checksums
-            for (int i = pos; i < buffer.position(); i++)
-                cc.put(buffer.get(i));
-            int checksum = Util.getChecksum(cc, 0, cc.limit());
+            int length = buffer.position() - pos;
+            long sum = Checksum.pseudo(source.getAddress(), destination.getAddress(), IPv4Header.TCP, length);
+            int checksum = Checksum.fold(Checksum.sum(buffer, pos, length, sum));
 
             buffer.putShort(pos + 16, (short) checksum);
         }
@@ -493,43 +624,6 @@ public class Packet {
         }
     }
 
-    public int getUid4() {
-        String addr = "";
-        byte[] b = this.IPv4.sourceAddress.getAddress();
-        for (int i = b.length - 1; i >= 0; i--)
-            addr += String.format("%02X", b[i]);
-        addr += ":" + String.format("%04X", this.TCP.sourcePort);
-
-        int uid = scanUid("0000000000000000FFFF0000" + addr, "/proc/net/tcp6");
-        if (uid < 0)
-            uid = scanUid(addr, "/proc/net/tcp");
-        return uid;
-    }
-
-    private static int scanUid(String addr, String name) {
-        File file = new File(name);
-        Scanner scanner = null;
-        try {
-            scanner = new Scanner(file);
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine().trim();
-                if (line.startsWith("sl"))
-                    continue;
-
-                String[] field = line.split("\\s+");
-                if (addr.equals(field[1]))
-                    return Integer.parseInt(field[7]);
-            }
-        } catch (FileNotFoundException ex) {
-            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-        } finally {
-            if (scanner != null)
-                scanner.close();
-        }
-
-        return -1;
-    }
-
     public static class Util {
         private static final char[] hex = "0123456789ABCDEF".toCharArray();
 
@@ -546,31 +640,7 @@ public class Packet {
         }
 
         public static int getChecksum(ByteBuffer buffer, int position, int length) {
-            int i = 0;
-            long sum = 0;
-            long data;
-            while (length > 1) {
-                data = (((buffer.get(position + i) << 8) & 0xFF00) | (buffer.get(position + i + 1) & 0xFF));
-                sum += data;
-                if ((sum & 0xFFFF0000) > 0) {
-                    sum = sum & 0xFFFF;
-                    sum += 1;
-                }
-                i += 2;
-                length -= 2;
-            }
-
-            if (length > 0) {
-                sum += (buffer.get(position + i) << 8 & 0xFF00);
-                if ((sum & 0xFFFF0000) > 0) {
-                    sum = sum & 0xFFFF;
-                    sum += 1;
-                }
-            }
-
-            sum = ~sum;
-            sum = sum & 0xFFFF;
-            return (int) sum;
+            return Checksum.fold(Checksum.sum(buffer, position, length, 0));
         }
     }
 }
@@ -0,0 +1,112 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Classifies raw packets by looking at a few bytes only
+// and routes them to the handler registered for their class
+public class PacketClassifier {
+    public static final int INVALID = 0;
+    public static final int TCP_SYN = 1;
+    public static final int TCP_OTHER = 2;
+    public static final int UDP = 3;
+    public static final int ICMP = 4;
+    public static final int FRAGMENT = 5;
+    public static final int OTHER = 6;
+    public static final int CLASSES = 7;
+
+    private static final String[] NAMES = new String[]{"invalid", "syn", "tcp", "udp", "icmp", "fragment", "other"};
+
+    public interface Handler {
+        // Returns true if the buffer now holds a reply
+        boolean handle(ByteBuffer buffer) throws IOException;
+    }
+
+    private final Handler[] handlers = new Handler[CLASSES];
+    private final long[] counters = new long[CLASSES];
+
+    public void setHandler(int cls, Handler handler) {
+        handlers[cls] = handler;
+    }
+
+    public static int classify(ByteBuffer buffer) {
+        int length = buffer.limit();
+        if (length < 20)
+            return INVALID;
+
+        int version = (buffer.get(0) & 0xFF) >> 4;
+        int offset;
+        int protocol;
+        if (version == 4) {
+            offset = (buffer.get(0) & 0xF) * 4;
+            if (offset < 20)
+                return INVALID;
+            // More fragments or a fragment offset, the first fragment too
+            if ((buffer.getShort(6) & 0x3FFF) != 0)
+                return FRAGMENT;
+            protocol = buffer.get(9) & 0xFF;
+        } else if (version == 6) {
+            if (length < 40)
+                return INVALID;
+            int next = PacketView.walk(buffer, 40, buffer.get(6) & 0xFF, length);
+            if (next < 0)
+                return INVALID;
+            offset = next >> 8;
+            protocol = next & 0xFF;
+        } else
+            return INVALID;
+
+        switch (protocol) {
+            case PacketView.TCP:
+                if (offset + 20 > length)
+                    return INVALID;
+                return ((buffer.get(offset + 13) & PacketView.SYN) != 0 ? TCP_SYN : TCP_OTHER);
+            case PacketView.UDP:
+                return (offset + 8 > length ? INVALID : UDP);
+            case PacketView.ICMP:
+            case PacketView.ICMPV6:
+                return ICMP;
+            case PacketView.FRAGMENT:
+                return FRAGMENT;
+            default:
+                return OTHER;
+        }
+    }
+
+    public boolean dispatch(ByteBuffer buffer) throws IOException {
+        int cls = classify(buffer);
+        counters[cls]++;
+        Handler handler = handlers[cls];
+        return (handler != null && handler.handle(buffer));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int cls = 0; cls < CLASSES; cls++) {
+            if (cls > 0)
+                sb.append(' ');
+            sb.append(NAMES[cls]).append('=').append(counters[cls]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,350 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+
+// reader thread -> ring per worker -> worker threads -> ring per worker -> writer thread
+// The reader only drains the tun device, so a slow worker doesn't stall the tunnel
+// When the rings or the buffer pool are full, packets are dropped at the reader
+public class PacketPipeline {
+    private static final String TAG = "NetGuard.Pipeline";
+
+    private static final int BATCH = 16;
+    private static final long PARK_NANOS = 10 * 1000 * 1000L;
+    private static final long JOIN_MILLIS = 1000;
+
+    public interface Worker {
+        int DROP = 0; // the buffer goes back to the pool
+        int REPLY = 1; // the buffer holds a reply to be written to the tun device
+        int HOLD = 2; // the worker keeps the buffer and hands it to the sink later
+
+        int process(ByteBuffer buffer) throws IOException;
+
+        // Called after every packet and when idle, hands over held buffers that are due
+        // Returns the nanoseconds until the next held buffer is due, Long.MAX_VALUE when none are held
+        long flush(Sink sink, boolean force) throws IOException;
+    }
+
+    public interface Sink {
+        void reply(ByteBuffer buffer);
+
+        void release(ByteBuffer buffer);
+    }
+
+    public interface WorkerFactory {
+        Worker create();
+    }
+
+    private final Context context;
+    private final BufferPool pool;
+    private final Worker[] workers;
+    private final PacketRing[] inbound;
+    private final PacketRing[] outbound;
+
+    private Thread reader = null;
+    private Thread[] processors = null;
+    private Thread writer = null;
+
+    private volatile long received = 0;
+    private volatile long exhausted = 0;
+    private volatile long written = 0;
+    private volatile long batches = 0;
+
+    public PacketPipeline(int workers, int capacity, BufferPool pool, WorkerFactory factory, Context context) {
+        this.context = context;
+        this.pool = pool;
+        this.workers = new Worker[workers];
+        this.inbound = new PacketRing[workers];
+        this.outbound = new PacketRing[workers];
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = factory.create();
+            this.inbound[i] = new PacketRing(capacity);
+            this.outbound[i] = new PacketRing(capacity);
+        }
+    }
+
+    public void start(final FileDescriptor fd, String name) {
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write(fd);
+            }
+        }, name + " writer");
+        for (PacketRing ring : outbound)
+            ring.setConsumer(writer);
+
+        processors = new Thread[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            final int index = i;
+            processors[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    process(index);
+                }
+            }, name + " worker " + i);
+            inbound[i].setConsumer(processors[i]);
+        }
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(fd);
+            }
+        }, name + " reader");
+
+        writer.start();
+        for (Thread processor : processors)
+            processor.start();
+        reader.start();
+    }
+
+    public void stop() {
+        reader.interrupt();
+        for (Thread processor : processors)
+            processor.interrupt();
+        writer.interrupt();
+
+        try {
+            reader.join(JOIN_MILLIS);
+            for (Thread processor : processors)
+                processor.join(JOIN_MILLIS);
+            writer.join(JOIN_MILLIS);
+        } catch (InterruptedException ex) {
+            Log.w(TAG, ex.toString());
+        }
+
+        // Return queued and held buffers to the pool
+        Sink sink = new Sink() {
+            @Override
+            public void reply(ByteBuffer buffer) {
+                pool.release(buffer);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                pool.release(buffer);
+            }
+        };
+        for (int i = 0; i < workers.length; i++) {
+            drain(inbound[i]);
+            drain(outbound[i]);
+            try {
+                workers[i].flush(sink, true);
+            } catch (IOException ex) {
+                Log.w(TAG, ex.toString());
+            }
+        }
+    }
+
+    private void drain(PacketRing ring) {
+        ByteBuffer buffer;
+        while ((buffer = ring.poll()) != null)
+            pool.release(buffer);
+    }
+
+    private void read(FileDescriptor fd) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(fd);
+            FileChannel channel = in.getChannel();
+            ByteBuffer discard = ByteBuffer.allocateDirect(pool.getBufferSize());
+
+            Log.i(TAG, "Start receiving");
+            while (!Thread.currentThread().isInterrupted() && fd.valid()) {
+                ByteBuffer buffer = pool.acquire();
+                try {
+                    if (buffer == null) {
+                        // Keep draining the tun device, but drop the packet
+                        exhausted++;
+                        discard.clear();
+                        channel.read(discard);
+                        continue;
+                    }
+
+                    int length = channel.read(buffer);
+                    if (length > 0) {
+                        buffer.flip();
+                        received++;
+                        int worker = (workers.length == 1 ? 0 : (hash(buffer) & 0x7FFFFFFF) % workers.length);
+                        if (inbound[worker].offer(buffer))
+                            buffer = null;
+                    }
+                } catch (ClosedByInterruptException ex) {
+                    break;
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString());
+                    Util.sendCrashReport(ex, context);
+                } finally {
+                    if (buffer != null)
+                        pool.release(buffer);
+                }
+            }
+            Log.i(TAG, "End receiving");
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            Util.sendCrashReport(ex, context);
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // All packets between the same two addresses go to the same worker
+    private static int hash(ByteBuffer buffer) {
+        if ((buffer.get(0) & 0xF0) == 0x60)
+            return (buffer.limit() < 40 ? 0 : buffer.getInt(20) ^ buffer.getInt(36));
+        else
+            return (buffer.limit() < 20 ? 0 : buffer.getInt(12) ^ buffer.getInt(16));
+    }
+
+    private void process(int index) {
+        Worker worker = workers[index];
+        PacketRing in = inbound[index];
+        final PacketRing out = outbound[index];
+        PacketRing[] wait = new PacketRing[]{in};
+        Sink sink = new Sink() {
+            @Override
+            public void reply(ByteBuffer buffer) {
+                if (!out.offer(buffer))
+                    pool.release(buffer);
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                pool.release(buffer);
+            }
+        };
+
+        while (!Thread.currentThread().isInterrupted()) {
+            ByteBuffer buffer = in.poll();
+            if (buffer != null) {
+                int result = Worker.DROP;
+                try {
+                    result = worker.process(buffer);
+                } catch (Throwable ex) {
+                    Log.e(TAG, ex.toString());
+                    Util.sendCrashReport(ex, context);
+                } finally {
+                    if (result == Worker.REPLY)
+                        sink.reply(buffer);
+                    else if (result == Worker.DROP)
+                        pool.release(buffer);
+                }
+            }
+
+            long delay = PARK_NANOS;
+            try {
+                delay = Math.min(delay, worker.flush(sink, false));
+            } catch (Throwable ex) {
+                Log.e(TAG, ex.toString());
+                Util.sendCrashReport(ex, context);
+            }
+
+            if (buffer == null && delay > 0)
+                try {
+                    PacketRing.await(wait, delay);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+        }
+    }
+
+    private void write(FileDescriptor fd) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(fd);
+            FileChannel channel = out.getChannel();
+
+            while (!Thread.currentThread().isInterrupted()) {
+                // Write up to a batch of replies from each worker before sleeping
+                int count = 0;
+                for (PacketRing ring : outbound) {
+                    int n = 0;
+                    ByteBuffer buffer;
+                    while (n < BATCH && (buffer = ring.poll()) != null)
+                        try {
+                            n++;
+                            buffer.position(0);
+                            channel.write(buffer);
+                            written++;
+                        } catch (ClosedByInterruptException ex) {
+                            throw ex;
+                        } catch (IOException ex) {
+                            Log.e(TAG, ex.toString());
+                        } finally {
+                            pool.release(buffer);
+                        }
+                    count += n;
+                }
+
+                if (count > 0)
+                    batches++;
+                else
+                    try {
+                        PacketRing.await(outbound, PARK_NANOS);
+                    } catch (InterruptedException ex) {
+                        break;
+                    }
+            }
+        } catch (ClosedByInterruptException ignored) {
+        } catch (Throwable ex) {
+            Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+            Util.sendCrashReport(ex, context);
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    public Worker[] getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("received=").append(received);
+        sb.append(" exhausted=").append(exhausted);
+        sb.append(" written=").append(written);
+        sb.append(" batches=").append(batches);
+        sb.append(" pool=").append(pool.getAvailable()).append('/').append(pool.getSize());
+        for (int i = 0; i < workers.length; i++) {
+            sb.append(" in").append(i).append('=').append(inbound[i]);
+            sb.append(" out").append(i).append('=').append(outbound[i]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,115 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded lock-free ring for exactly one producer and one consumer thread
+public class PacketRing {
+    private final ByteBuffer[] items;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0); // written by the consumer
+    private final AtomicLong tail = new AtomicLong(0); // written by the producer
+
+    private volatile Thread consumer = null;
+    private volatile boolean parked = false;
+
+    // Producer side gauges
+    private int maxSize = 0;
+    private long dropped = 0;
+
+    public PacketRing(int capacity) {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        items = new ByteBuffer[size];
+        mask = size - 1;
+    }
+
+    public void setConsumer(Thread thread) {
+        consumer = thread;
+    }
+
+    public boolean offer(ByteBuffer buffer) {
+        long t = tail.get();
+        if (t - head.get() >= items.length) {
+            dropped++;
+            return false;
+        }
+
+        items[(int) t & mask] = buffer;
+        tail.set(t + 1);
+
+        int size = (int) (t + 1 - head.get());
+        if (size > maxSize)
+            maxSize = size;
+
+        if (parked) {
+            Thread thread = consumer;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    public ByteBuffer poll() {
+        long h = head.get();
+        if (h == tail.get())
+            return null;
+        int index = (int) h & mask;
+        ByteBuffer buffer = items[index];
+        items[index] = null;
+        head.set(h + 1);
+        return buffer;
+    }
+
+    public boolean isEmpty() {
+        return (head.get() == tail.get());
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    // Park the calling consumer until one of the rings gets an item, the timeout expires or the thread is interrupted
+    // The parked flag is set before the emptiness check, so an offer in between always unparks
+    public static void await(PacketRing[] rings, long nanos) throws InterruptedException {
+        for (PacketRing ring : rings)
+            ring.parked = true;
+        try {
+            for (PacketRing ring : rings)
+                if (!ring.isEmpty())
+                    return;
+            LockSupport.parkNanos(rings, nanos);
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        } finally {
+            for (PacketRing ring : rings)
+                ring.parked = false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return size() + "/" + items.length + " max=" + maxSize + " dropped=" + dropped;
+    }
+}
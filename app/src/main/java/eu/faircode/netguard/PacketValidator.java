@@ -0,0 +1,87 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.ByteBuffer;
+
+// Packets from the tun device come from the local kernel and are almost always correct
+// strict: verify header sanity and all checksums
+// header: verify header sanity only
+// kernel: only check what is needed to safely read the fields
+// Below strict, checksums of every SAMPLE-th packet are still verified,
+// so that the counters show what each level would have rejected
+public class PacketValidator {
+    public enum Level {strict, header, kernel}
+
+    private static final int SAMPLE = 64;
+
+    private final Level level;
+    private long checked = 0;
+    private long verified = 0;
+    private final long[] rejected = new long[Level.values().length];
+
+    public PacketValidator(Level level) {
+        this.level = level;
+    }
+
+    public boolean wrap(PacketView view, ByteBuffer buffer) {
+        checked++;
+
+        if (!view.wrap(buffer)) {
+            rejected[Level.strict.ordinal()]++;
+            rejected[Level.header.ordinal()]++;
+            rejected[Level.kernel.ordinal()]++;
+            return false;
+        }
+
+        boolean sane = view.isHeaderValid();
+        if (!sane) {
+            rejected[Level.strict.ordinal()]++;
+            rejected[Level.header.ordinal()]++;
+        }
+
+        boolean correct = true;
+        if (sane && (level == Level.strict || checked % SAMPLE == 0)) {
+            verified++;
+            correct = view.isChecksumValid();
+            if (!correct)
+                rejected[Level.strict.ordinal()]++;
+        }
+
+        switch (level) {
+            case strict:
+                return (sane && correct);
+            case header:
+                return sane;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "level=" + level +
+                " checked=" + checked +
+                " verified=" + verified +
+                " rejected strict=" + rejected[Level.strict.ordinal()] +
+                " header=" + rejected[Level.header.ordinal()] +
+                " kernel=" + rejected[Level.kernel.ordinal()];
+    }
+}
@@ -0,0 +1,380 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+// Reusable view on a raw packet, all fields are read from the buffer by offset
+// Objects are only created when explicitly asked for (addresses, Packet)
+public class PacketView {
+    public static final int HOPOPT = 0;
+    public static final int ICMP = 1;
+    public static final int TCP = 6;
+    public static final int UDP = 17;
+    public static final int ROUTING = 43;
+    public static final int FRAGMENT = 44;
+    public static final int AH = 51;
+    public static final int ICMPV6 = 58;
+    public static final int NONE = 59;
+    public static final int DSTOPTS = 60;
+
+    public static final int FIN = 0x01;
+    public static final int SYN = 0x02;
+    public static final int RST = 0x04;
+    public static final int PSH = 0x08;
+    public static final int ACK = 0x10;
+    public static final int URG = 0x20;
+    public static final int ECE = 0x40;
+    public static final int CWR = 0x80;
+
+    private ByteBuffer buffer = null;
+    private int length;
+    private int version;
+    private int protocol;
+    private int offset; // transport header
+
+    private InetAddress sourceAddress = null;
+    private InetAddress destinationAddress = null;
+
+    public boolean wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.sourceAddress = null;
+        this.destinationAddress = null;
+
+        this.length = buffer.limit();
+        if (this.length < 20)
+            return false;
+
+        int b = buffer.get(0) & 0xFF;
+        this.version = b >> 4;
+        if (this.version == 4) {
+            this.offset = (b & 0xF) * 4;
+            int totalLength = buffer.getShort(2) & 0xFFFF;
+            if (this.offset < 20 || totalLength < this.offset || totalLength > this.length)
+                return false;
+            this.length = totalLength;
+            this.protocol = buffer.get(9) & 0xFF;
+
+        } else if (this.version == 6) {
+            if (this.length < 40)
+                return false;
+            int totalLength = 40 + (buffer.getShort(4) & 0xFFFF);
+            if (totalLength > this.length)
+                return false;
+            this.length = totalLength;
+
+            int next = walk(buffer, 40, buffer.get(6) & 0xFF, this.length);
+            if (next < 0)
+                return false;
+            this.offset = next >> 8;
+            this.protocol = next & 0xFF;
+
+        } else
+            return false;
+
+        if (this.protocol == TCP) {
+            if (this.length < this.offset + 20)
+                return false;
+            int dataOffset = (buffer.get(this.offset + 12) & 0xFF) >> 4;
+            if (dataOffset < 5 || this.offset + dataOffset * 4 > this.length)
+                return false;
+        } else if (this.protocol == UDP) {
+            if (this.length < this.offset + 8)
+                return false;
+        }
+
+        return true;
+    }
+
+    // Skip IPv6 extension headers
+    // Returns (offset << 8 | protocol) of the upper layer header or -1 if malformed
+    // Non-first fragments are returned as protocol FRAGMENT
+    // https://tools.ietf.org/html/rfc2460#section-4
+    static int walk(ByteBuffer buffer, int position, int next, int limit) {
+        for (int i = 0; i < 8; i++)
+            switch (next) {
+                case HOPOPT:
+                case ROUTING:
+                case DSTOPTS:
+                    if (position + 8 > limit)
+                        return -1;
+                    int length = ((buffer.get(position + 1) & 0xFF) + 1) * 8;
+                    next = buffer.get(position) & 0xFF;
+                    position += length;
+                    break;
+
+                case FRAGMENT:
+                    if (position + 8 > limit)
+                        return -1;
+                    if ((buffer.getShort(position + 2) & 0xFFF8) != 0)
+                        return (position << 8) | FRAGMENT;
+                    next = buffer.get(position) & 0xFF;
+                    position += 8;
+                    break;
+
+                case AH:
+                    if (position + 8 > limit)
+                        return -1;
+                    length = ((buffer.get(position + 1) & 0xFF) + 2) * 4;
+                    next = buffer.get(position) & 0xFF;
+                    position += length;
+                    break;
+
+                default:
+                    return (position > limit ? -1 : (position << 8) | next);
+            }
+        return -1;
+    }
+
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    public int getVersion() {
+        return this.version;
+    }
+
+    public int getProtocol() {
+        return this.protocol;
+    }
+
+    public int getHeaderLength() {
+        return this.offset;
+    }
+
+    public int getAddressLength() {
+        return (this.version == 4 ? 4 : 16);
+    }
+
+    public int getSourceAddressOffset() {
+        return (this.version == 4 ? 12 : 8);
+    }
+
+    public int getDestinationAddressOffset() {
+        return (this.version == 4 ? 16 : 24);
+    }
+
+    public int getSourceAddressInt() {
+        return this.buffer.getInt(12);
+    }
+
+    public InetAddress getSourceAddress() {
+        if (this.sourceAddress == null)
+            this.sourceAddress = getAddress(getSourceAddressOffset());
+        return this.sourceAddress;
+    }
+
+    public InetAddress getDestinationAddress() {
+        if (this.destinationAddress == null)
+            this.destinationAddress = getAddress(getDestinationAddressOffset());
+        return this.destinationAddress;
+    }
+
+    private InetAddress getAddress(int position) {
+        byte[] address = new byte[getAddressLength()];
+        for (int i = 0; i < address.length; i++)
+            address[i] = this.buffer.get(position + i);
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException ignored) {
+            // Only thrown for an illegal address length
+            return null;
+        }
+    }
+
+    // Hash of source address and both ports, identifies a connection attempt
+    public int getFlowHash() {
+        int hash = this.buffer.getInt(getSourceAddressOffset() + getAddressLength() - 4);
+        if (this.version == 6)
+            hash = hash * 31 + this.buffer.getInt(getSourceAddressOffset() + 8);
+        if (this.protocol == TCP || this.protocol == UDP)
+            hash = hash * 31 + this.buffer.getInt(this.offset);
+        return hash * 31 + this.protocol;
+    }
+
+    public boolean isTCP() {
+        return (this.protocol == TCP);
+    }
+
+    public boolean isUDP() {
+        return (this.protocol == UDP);
+    }
+
+    public boolean isMulticast() {
+        int destination = getDestinationAddressOffset();
+        if (this.version == 4) {
+            int address = this.buffer.getInt(destination);
+            return ((address & 0xF0000000) == 0xE0000000 || address == 0xFFFFFFFF);
+        } else
+            return ((this.buffer.get(destination) & 0xFF) == 0xFF);
+    }
+
+    public int getSourcePort() {
+        return this.buffer.getShort(this.offset) & 0xFFFF;
+    }
+
+    public int getDestinationPort() {
+        return this.buffer.getShort(this.offset + 2) & 0xFFFF;
+    }
+
+    public long getSequenceNumber() {
+        return this.buffer.getInt(this.offset + 4) & 0xFFFFFFFFL;
+    }
+
+    public long getAcknowledgementNumber() {
+        return this.buffer.getInt(this.offset + 8) & 0xFFFFFFFFL;
+    }
+
+    public int getDataOffset() {
+        return ((this.buffer.get(this.offset + 12) & 0xFF) >> 4) * 4;
+    }
+
+    public int getFlags() {
+        return this.buffer.get(this.offset + 13) & 0xFF;
+    }
+
+    public boolean isSYN() {
+        return (this.protocol == TCP && (getFlags() & SYN) != 0);
+    }
+
+    public int getDataLength() {
+        return this.length - this.offset - getDataOffset();
+    }
+
+    // Header sanity checks beyond what is needed to safely read the fields
+    public boolean isHeaderValid() {
+        if (this.version == 4 && (this.buffer.get(6) & 0x80) != 0)
+            return false; // reserved flag
+        if (this.protocol == TCP)
+            return ((this.buffer.get(this.offset + 12) & 0x0E) == 0); // reserved bits
+        if (this.protocol == UDP)
+            return ((this.buffer.getShort(this.offset + 4) & 0xFFFF) == this.length - this.offset);
+        return true;
+    }
+
+    public boolean isChecksumValid() {
+        ByteBuffer b = this.buffer;
+        if (this.version == 4 && Checksum.fold(Checksum.sum(b, 0, this.offset, 0)) != 0)
+            return false;
+
+        if (this.protocol == TCP || this.protocol == UDP) {
+            int segmentLength = this.length - this.offset;
+            if (this.protocol == UDP && this.version == 4 && b.getShort(this.offset + 6) == 0)
+                return true; // no checksum
+            long sum = (this.version == 4
+                    ? Checksum.pseudo4(b, this.protocol, segmentLength)
+                    : Checksum.pseudo6(b, this.protocol, segmentLength));
+            return (Checksum.fold(Checksum.sum(b, this.offset, segmentLength, sum)) == 0);
+        }
+
+        return true;
+    }
+
+    // Rewrite a received TCP segment into a RST reply in place
+    // Options, data, IPv4 options and IPv6 extension headers are dropped
+    // The reply is written from a template, see ReplyBuilder
+    // https://tools.ietf.org/html/rfc793#section-3.4
+    public void reset() {
+        ByteBuffer b = this.buffer;
+        int tcp = this.offset;
+
+        int flags = getFlags();
+        int seq = b.getInt(tcp + 4);
+        int ack = b.getInt(tcp + 8);
+        int ports = b.getInt(tcp);
+        int dataLength = this.length - tcp - getDataOffset();
+
+        int newSeq = ((flags & ACK) != 0 ? ack : 0);
+        int newAck = seq + dataLength + ((flags & SYN) != 0 ? 1 : 0) + ((flags & FIN) != 0 ? 1 : 0);
+        int newPorts = (ports << 16) | (ports >>> 16);
+
+        // IPv4 options and IPv6 extension headers are not copied
+        if (this.version == 4) {
+            this.length = ReplyBuilder.reset4(b, b.getInt(16), b.getInt(12), newPorts, newSeq, newAck);
+            this.offset = 20;
+        } else {
+            this.length = ReplyBuilder.reset6(b,
+                    b.getLong(24), b.getLong(32), b.getLong(8), b.getLong(16),
+                    newPorts, newSeq, newAck);
+            this.offset = 40;
+        }
+        this.sourceAddress = null;
+        this.destinationAddress = null;
+    }
+
+    // Rewrite a received datagram into an ICMP(v6) port unreachable reply in place
+    // The invoking packet is moved back to make room for the new headers
+    // https://tools.ietf.org/html/rfc792
+    // https://tools.ietf.org/html/rfc4443#section-3.1
+    public void unreachable() {
+        ByteBuffer b = this.buffer;
+        int header = (this.version == 4 ? ReplyBuilder.ICMP4_LENGTH : ReplyBuilder.ICMP6_LENGTH);
+        int quoted = (this.version == 4
+                ? Math.min(this.length, this.offset + 8)
+                : Math.min(this.length, 1280 - header));
+        b.limit(b.capacity());
+
+        for (int i = quoted - 1; i >= 0; i--)
+            b.put(header + i, b.get(i));
+
+        // Reply goes from the original destination back to the original source
+        int source = header + getDestinationAddressOffset();
+        int destination = header + getSourceAddressOffset();
+
+        if (this.version == 4) {
+            this.length = ReplyBuilder.unreachable4(b, b.getInt(source), b.getInt(destination), quoted);
+            this.offset = 20;
+            this.protocol = ICMP;
+        } else {
+            this.length = ReplyBuilder.unreachable6(b,
+                    b.getLong(source), b.getLong(source + 8), b.getLong(destination), b.getLong(destination + 8),
+                    quoted);
+            this.offset = 40;
+            this.protocol = ICMPV6;
+        }
+        this.sourceAddress = null;
+        this.destinationAddress = null;
+    }
+
+    public String toShortString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getSourceAddress());
+        if (isTCP() || isUDP())
+            sb.append(':').append(getSourcePort());
+        sb.append(" > ");
+        sb.append(getDestinationAddress());
+        if (isUDP())
+            sb.append(':').append(getDestinationPort());
+        if (isTCP()) {
+            sb.append(':').append(getDestinationPort());
+            sb.append(" seq=").append(getSequenceNumber());
+            sb.append(" ack=").append(getAcknowledgementNumber());
+            sb.append(" flags=").append(Integer.toHexString(getFlags()));
+            sb.append(" len=").append(getDataLength());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// Parses /proc/net/{tcp,tcp6,udp,udp6} byte by byte into a reused buffer
+// Local addresses are reported as 128 bits in network byte order, IPv4 addresses IPv4-mapped
+public class ProcNetParser {
+    private static final String TAG = "NetGuard.Proc";
+
+    public static final String TCP = "/proc/net/tcp";
+    public static final String TCP6 = "/proc/net/tcp6";
+    public static final String UDP = "/proc/net/udp";
+    public static final String UDP6 = "/proc/net/udp6";
+
+    public static final long MAPPED = 0xFFFF00000000L;
+
+    public interface Listener {
+        void onSocket(long high, long low, int port, int uid);
+    }
+
+    private byte[] buffer = new byte[8192];
+
+    // Returns false when the file could not be read
+    public boolean parse(String name, Listener listener) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(name);
+            boolean header = true;
+            int length = 0;
+            int n;
+            while ((n = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += n;
+
+                int start = 0;
+                for (int i = 0; i < length; i++)
+                    if (buffer[i] == '\n') {
+                        if (header)
+                            header = false;
+                        else
+                            parseLine(start, i, listener);
+                        start = i + 1;
+                    }
+
+                // Keep the incomplete last line
+                length -= start;
+                System.arraycopy(buffer, start, buffer, 0, length);
+                if (length == buffer.length) {
+                    byte[] larger = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, larger, 0, length);
+                    buffer = larger;
+                }
+            }
+            if (length > 0 && !header)
+                parseLine(0, length, listener);
+            return true;
+        } catch (IOException ex) {
+            Log.e(TAG, ex.toString());
+            return false;
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid ...
+    private void parseLine(int start, int end, Listener listener) {
+        int i = skipField(start, end); // sl
+        i = skipSpace(i, end);
+
+        // Local address: 8 or 32 hex digits, in 32-bit words in host (little endian) byte order
+        int digits = 0;
+        while (i + digits < end && buffer[i + digits] != ':')
+            digits++;
+        long high;
+        long low;
+        if (digits == 8) {
+            high = 0;
+            low = MAPPED | (word(i) & 0xFFFFFFFFL);
+        } else if (digits == 32) {
+            high = ((long) word(i) << 32) | (word(i + 8) & 0xFFFFFFFFL);
+            low = ((long) word(i + 16) << 32) | (word(i + 24) & 0xFFFFFFFFL);
+        } else
+            return;
+        i += digits + 1;
+
+        int port = 0;
+        for (int d = 0; d < 4 && i < end; d++)
+            port = (port << 4) | hex(buffer[i++]);
+
+        // Skip rem_address, st, tx_queue:rx_queue, tr:tm->when and retrnsmt
+        for (int f = 0; f < 5; f++)
+            i = skipField(skipSpace(i, end), end);
+        i = skipSpace(i, end);
+        if (i >= end)
+            return;
+
+        int uid = 0;
+        while (i < end && buffer[i] >= '0' && buffer[i] <= '9')
+            uid = uid * 10 + (buffer[i++] - '0');
+
+        listener.onSocket(high, low, port, uid);
+    }
+
+    private int word(int i) {
+        int value = 0;
+        for (int d = 0; d < 8; d++)
+            value = (value << 4) | hex(buffer[i + d]);
+        return Integer.reverseBytes(value);
+    }
+
+    private static int hex(byte c) {
+        return (c <= '9' ? c - '0' : (c | 0x20) - 'a' + 10);
+    }
+
+    private int skipSpace(int i, int end) {
+        while (i < end && buffer[i] == ' ')
+            i++;
+        return i;
+    }
+
+    private int skipField(int i, int end) {
+        i = skipSpace(i, end);
+        while (i < end && buffer[i] != ' ')
+            i++;
+        return i;
+    }
+}
@@ -0,0 +1,259 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Resolves the uid owning a local TCP or UDP socket from a snapshot of /proc/net/{tcp,tcp6,udp,udp6}
+// All tables are indexed in one map, keyed by IPv4-mapped 128-bit address, port and protocol,
+// so IPv4, IPv6 and dual stack sockets are found with one probe
+// Tables are only reread when needed for a packet, an IPv6 miss doesn't reread the IPv4 tables,
+// and each table not more often than the minimum interval, whatever the workers ask for
+public class ProcUidResolver implements UidResolver {
+    private static final int TCP = 0;
+    private static final int TCP6 = 1;
+    private static final int UDP = 2;
+    private static final int UDP6 = 3;
+    private static final int TABLES = 4;
+
+    private static final String[] FILES = new String[]{
+            ProcNetParser.TCP, ProcNetParser.TCP6, ProcNetParser.UDP, ProcNetParser.UDP6};
+    private static final int[] PROTOCOLS = new int[]{
+            PacketView.TCP, PacketView.TCP, PacketView.UDP, PacketView.UDP};
+
+    private final long minInterval; // nanoseconds
+    private final ProcNetParser parser = new ProcNetParser(); // used by the refreshing thread only
+
+    private volatile Table table = new Table(16);
+    private final boolean[] scanned = new boolean[TABLES];
+    private final long[] lastScan = new long[TABLES]; // System.nanoTime() at the start of the last scan
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final long[] scans = new long[TABLES];
+    private long throttled = 0;
+    private long refreshes = 0;
+    private long refreshNanos = 0;
+    private long maxRefreshNanos = 0;
+
+    public ProcUidResolver(long minInterval) {
+        this.minInterval = minInterval * 1000000L;
+    }
+
+    @Override
+    public int lookup(PacketView view) {
+        int uid = find(table, view);
+        if (uid >= 0)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return uid;
+    }
+
+    private static int find(Table table, PacketView view) {
+        long high;
+        long low;
+        int source = view.getSourceAddressOffset();
+        if (view.getVersion() == 4) {
+            high = 0;
+            low = ProcNetParser.MAPPED | (view.getSourceAddressInt() & 0xFFFFFFFFL);
+        } else {
+            high = view.getBuffer().getLong(source);
+            low = view.getBuffer().getLong(source + 8);
+        }
+        int key = key(view.getSourcePort(), view.getProtocol());
+
+        int uid = table.get(high, low, key);
+        if (uid < 0 && view.isUDP()) {
+            // Unconnected datagram sockets are listed with the wildcard address
+            if (view.getVersion() == 4)
+                uid = table.get(0, ProcNetParser.MAPPED, key);
+            if (uid < 0)
+                uid = table.get(0, 0, key);
+        }
+        return uid;
+    }
+
+    private static int key(int port, int protocol) {
+        return (port & 0xFFFF) | (protocol << 16);
+    }
+
+    // Rereads the tables that can hold the socket of the packet,
+    // unless they were read after the given System.nanoTime()
+    @Override
+    public synchronized boolean refresh(PacketView view, long after) {
+        int mask;
+        if (view.isTCP())
+            mask = (view.getVersion() == 4 ? (1 << TCP) | (1 << TCP6) : (1 << TCP6));
+        else if (view.isUDP())
+            mask = (view.getVersion() == 4 ? (1 << UDP) | (1 << UDP6) : (1 << UDP6));
+        else
+            return false;
+
+        long now = System.nanoTime();
+        for (int t = 0; t < TABLES; t++)
+            if ((mask & (1 << t)) != 0 && scanned[t])
+                if (lastScan[t] - after > 0)
+                    mask &= ~(1 << t);
+                else if (now - lastScan[t] < minInterval) {
+                    mask &= ~(1 << t);
+                    throttled++;
+                }
+        if (mask == 0)
+            return false;
+
+        scan(mask);
+        return true;
+    }
+
+    private void scan(int mask) {
+        long start = System.nanoTime();
+
+        // Keep the entries of the other tables
+        Table current = table;
+        Table snapshot = new Table(current.size());
+        current.copyTo(snapshot, ~mask);
+
+        for (int t = 0; t < TABLES; t++)
+            if ((mask & (1 << t)) != 0) {
+                lastScan[t] = start;
+                load(snapshot, t);
+                scanned[t] = true;
+                scans[t]++;
+            }
+        table = snapshot;
+
+        long elapsed = System.nanoTime() - start;
+        refreshes++;
+        refreshNanos += elapsed;
+        if (elapsed > maxRefreshNanos)
+            maxRefreshNanos = elapsed;
+    }
+
+    private void load(final Table snapshot, final int t) {
+        final int protocol = PROTOCOLS[t];
+        parser.parse(FILES[t], new ProcNetParser.Listener() {
+            @Override
+            public void onSocket(long high, long low, int port, int uid) {
+                snapshot.put(high, low, key(port, protocol), uid, t);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "proc entries=" + table.size() +
+                " hits=" + hits.get() +
+                " misses=" + misses.get() +
+                " scans tcp=" + scans[TCP] + " tcp6=" + scans[TCP6] +
+                " udp=" + scans[UDP] + " udp6=" + scans[UDP6] +
+                " throttled=" + throttled +
+                " refresh avg=" + (refreshes == 0 ? 0 : refreshNanos / refreshes / 1000) + " us" +
+                " max=" + maxRefreshNanos / 1000 + " us";
+    }
+
+    // Open addressing map from address, port and protocol to a uid and the table it came from
+    // Filled once by the refreshing thread, read only after publication
+    private static class Table {
+        private long[] highs;
+        private long[] lows;
+        private int[] keys;
+        private int[] uids; // -1 is an empty slot
+        private byte[] sources;
+        private int mask;
+        private int size = 0;
+
+        Table(int expected) {
+            int capacity = 16;
+            while (capacity < expected * 2)
+                capacity <<= 1;
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            highs = new long[capacity];
+            lows = new long[capacity];
+            keys = new int[capacity];
+            uids = new int[capacity];
+            sources = new byte[capacity];
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++)
+                uids[i] = -1;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void put(long high, long low, int key, int uid, int source) {
+            if ((size + 1) * 2 > uids.length)
+                grow();
+            int i = index(high, low, key);
+            while (uids[i] >= 0 && !(lows[i] == low && highs[i] == high && keys[i] == key))
+                i = (i + 1) & mask;
+            if (uids[i] < 0)
+                size++;
+            highs[i] = high;
+            lows[i] = low;
+            keys[i] = key;
+            uids[i] = uid;
+            sources[i] = (byte) source;
+        }
+
+        int get(long high, long low, int key) {
+            int i = index(high, low, key);
+            while (uids[i] >= 0) {
+                if (lows[i] == low && highs[i] == high && keys[i] == key)
+                    return uids[i];
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        // Copies the entries that came from the tables in the mask
+        void copyTo(Table other, int tables) {
+            for (int i = 0; i < uids.length; i++)
+                if (uids[i] >= 0 && (tables & (1 << sources[i])) != 0)
+                    other.put(highs[i], lows[i], keys[i], uids[i], sources[i]);
+        }
+
+        private void grow() {
+            long[] oldHighs = highs;
+            long[] oldLows = lows;
+            int[] oldKeys = keys;
+            int[] oldUids = uids;
+            byte[] oldSources = sources;
+            allocate(uids.length * 2);
+            size = 0;
+            for (int i = 0; i < oldUids.length; i++)
+                if (oldUids[i] >= 0)
+                    put(oldHighs[i], oldLows[i], oldKeys[i], oldUids[i], oldSources[i]);
+        }
+
+        private int index(long high, long low, int key) {
+            long hash = (high * 31 + low) * 31 + key;
+            return (int) ((hash * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+}
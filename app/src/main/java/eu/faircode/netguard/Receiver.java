@@ -38,6 +38,11 @@ public class Receiver extends BroadcastReceiver {
         Util.logExtras(intent);
 
         if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())) {
+            // Forget or reread the uid of the package
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid >= 0)
+                UidCache.update(uid, context);
+
             // Remove settings
             if (intent.getBooleanExtra(Intent.EXTRA_DATA_REMOVED, false)) {
                 String packageName = intent.getData().getSchemeSpecificPart();
@@ -0,0 +1,171 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.ByteBuffer;
+
+// Builds RST and ICMP(v6) port unreachable replies from preinitialized headers
+// Only addresses, ports, sequence numbers, lengths and checksums are written per reply,
+// the checksums start from the precomputed sum of the constant header words
+public class ReplyBuilder {
+    public static final int RST4_LENGTH = 40;
+    public static final int RST6_LENGTH = 60;
+    public static final int ICMP4_LENGTH = 28;
+    public static final int ICMP6_LENGTH = 48;
+
+    private static final byte[] RST4 = new byte[RST4_LENGTH];
+    private static final byte[] RST6 = new byte[RST6_LENGTH];
+    private static final byte[] ICMP4 = new byte[ICMP4_LENGTH];
+    private static final byte[] ICMP6 = new byte[ICMP6_LENGTH];
+
+    private static final long RST4_IP_SUM;
+    private static final long RST4_TCP_SUM;
+    private static final long RST6_TCP_SUM;
+    private static final long ICMP4_IP_SUM;
+    private static final long ICMP4_SUM;
+    private static final long ICMP6_SUM;
+
+    static {
+        // IPv4, no options, don't fragment, TTL 64
+        ByteBuffer b = ByteBuffer.wrap(RST4);
+        b.putInt(0, 0x45000000 | RST4_LENGTH);
+        b.putInt(4, 0x4000);
+        b.putInt(8, 64 << 24 | PacketView.TCP << 16);
+        tcp(b, 20);
+        RST4_IP_SUM = Checksum.sum(b, 0, 20, 0);
+        RST4_TCP_SUM = Checksum.sum(b, 20, 20, PacketView.TCP + 20);
+
+        // IPv6, hop limit 64
+        b = ByteBuffer.wrap(RST6);
+        b.putInt(0, 0x60000000);
+        b.putShort(4, (short) 20);
+        b.put(6, (byte) PacketView.TCP);
+        b.put(7, (byte) 64);
+        tcp(b, 40);
+        RST6_TCP_SUM = Checksum.sum(b, 40, 20, PacketView.TCP + 20);
+
+        b = ByteBuffer.wrap(ICMP4);
+        b.putInt(0, 0x45000000);
+        b.putInt(8, 64 << 24 | PacketView.ICMP << 16);
+        b.putInt(20, 3 << 24 | 3 << 16); // destination unreachable, port unreachable
+        ICMP4_IP_SUM = Checksum.sum(b, 0, 20, 0);
+        ICMP4_SUM = Checksum.sum(b, 20, 8, 0);
+
+        b = ByteBuffer.wrap(ICMP6);
+        b.putInt(0, 0x60000000);
+        b.put(6, (byte) PacketView.ICMPV6);
+        b.put(7, (byte) 64);
+        b.putInt(40, 1 << 24 | 4 << 16); // destination unreachable, port unreachable
+        ICMP6_SUM = Checksum.sum(b, 40, 8, PacketView.ICMPV6);
+    }
+
+    private static void tcp(ByteBuffer b, int tcp) {
+        b.putShort(tcp + 12, (short) ((5 << 12) | PacketView.RST | PacketView.ACK));
+    }
+
+    // Writes a RST|ACK at the start of the buffer and returns its length
+    // The arguments are the fields of the reply, the buffer may still hold the original packet
+    public static int reset4(ByteBuffer b, int source, int destination, int ports, int seq, int ack) {
+        put(b, RST4);
+        b.putInt(12, source);
+        b.putInt(16, destination);
+        b.putInt(20, ports);
+        b.putInt(24, seq);
+        b.putInt(28, ack);
+
+        long addresses = sum(source) + sum(destination);
+        b.putShort(10, (short) Checksum.fold(RST4_IP_SUM + addresses));
+        b.putShort(36, (short) Checksum.fold(RST4_TCP_SUM + addresses + sum(ports) + sum(seq) + sum(ack)));
+
+        b.limit(RST4_LENGTH);
+        return RST4_LENGTH;
+    }
+
+    public static int reset6(ByteBuffer b,
+                             long sourceHigh, long sourceLow, long destinationHigh, long destinationLow,
+                             int ports, int seq, int ack) {
+        put(b, RST6);
+        b.putLong(8, sourceHigh);
+        b.putLong(16, sourceLow);
+        b.putLong(24, destinationHigh);
+        b.putLong(32, destinationLow);
+        b.putInt(40, ports);
+        b.putInt(44, seq);
+        b.putInt(48, ack);
+
+        long sum = RST6_TCP_SUM +
+                sum(sourceHigh) + sum(sourceLow) + sum(destinationHigh) + sum(destinationLow) +
+                sum(ports) + sum(seq) + sum(ack);
+        b.putShort(56, (short) Checksum.fold(sum));
+
+        b.limit(RST6_LENGTH);
+        return RST6_LENGTH;
+    }
+
+    // Writes the headers in front of the quoted packet, which must already be at ICMP4_LENGTH
+    public static int unreachable4(ByteBuffer b, int source, int destination, int quoted) {
+        int length = ICMP4_LENGTH + quoted;
+        put(b, ICMP4);
+        b.putShort(2, (short) length);
+        b.putInt(12, source);
+        b.putInt(16, destination);
+
+        b.putShort(10, (short) Checksum.fold(ICMP4_IP_SUM + length + sum(source) + sum(destination)));
+        b.putShort(22, (short) Checksum.fold(Checksum.sum(b, ICMP4_LENGTH, quoted, ICMP4_SUM)));
+
+        b.limit(length);
+        return length;
+    }
+
+    // Writes the headers in front of the quoted packet, which must already be at ICMP6_LENGTH
+    public static int unreachable6(ByteBuffer b,
+                                   long sourceHigh, long sourceLow, long destinationHigh, long destinationLow,
+                                   int quoted) {
+        int payload = 8 + quoted;
+        put(b, ICMP6);
+        b.putShort(4, (short) payload);
+        b.putLong(8, sourceHigh);
+        b.putLong(16, sourceLow);
+        b.putLong(24, destinationHigh);
+        b.putLong(32, destinationLow);
+
+        long sum = ICMP6_SUM + payload +
+                sum(sourceHigh) + sum(sourceLow) + sum(destinationHigh) + sum(destinationLow);
+        b.putShort(42, (short) Checksum.fold(Checksum.sum(b, ICMP6_LENGTH, quoted, sum)));
+
+        b.limit(ICMP6_LENGTH + quoted);
+        return ICMP6_LENGTH + quoted;
+    }
+
+    private static void put(ByteBuffer b, byte[] template) {
+        b.limit(b.capacity());
+        b.position(0);
+        b.put(template);
+        b.position(0);
+    }
+
+    private static long sum(int value) {
+        return (value >>> 16) + (value & 0xFFFF);
+    }
+
+    private static long sum(long value) {
+        return sum((int) (value >>> 32)) + sum((int) value);
+    }
+}
@@ -33,17 +33,14 @@ import android.util.Log;
 import org.xmlpull.v1.XmlPullParser;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Rule implements Comparable<Rule> {
     public PackageInfo info;
-    public String name;
     public boolean system;
-    public boolean internet;
-    public boolean disabled;
 
     public boolean wifi_default;
     public boolean other_default;
@@ -61,28 +58,68 @@ public class Rule implements Comparable<Rule> {
 
     public boolean changed;
 
-    public Intent intent;
-
     public boolean attributes = false;
 
-    private Rule(PackageInfo info, Context context) {
-        PackageManager pm = context.getPackageManager();
+    // Only needed to display the rule, loaded on first use and shared by all copies of the rule
+    private final Presentation presentation;
+
+    public static class Presentation {
+        public String name;
+        public boolean internet;
+        public boolean disabled;
+        public Intent intent;
+
+        private boolean loaded = false;
+    }
 
+    private Rule(PackageInfo info) {
         this.info = info;
-        this.name = info.applicationInfo.loadLabel(pm).toString();
+        this.system = ((info.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
+        this.presentation = new Presentation();
+    }
+
+    private Rule(Rule other) {
+        this.info = other.info;
+        this.system = other.system;
+        this.presentation = other.presentation;
+    }
+
+    // Doesn't query the package manager, use RuleRepository to get rules
+    static Rule fromPackage(PackageInfo info) {
+        return new Rule(info);
+    }
 
-        this.internet = (pm.checkPermission("android.permission.INTERNET", info.packageName) == PackageManager.PERMISSION_GRANTED);
+    // Queries the package manager the first time
+    public Presentation getPresentation(Context context) {
+        synchronized (presentation) {
+            if (!presentation.loaded) {
+                PackageManager pm = context.getPackageManager();
 
-        int setting = pm.getApplicationEnabledSetting(info.packageName);
-        if (setting == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT)
-            this.disabled = !info.applicationInfo.enabled;
-        else
-            this.disabled = (setting != PackageManager.COMPONENT_ENABLED_STATE_ENABLED);
+                presentation.name = info.applicationInfo.loadLabel(pm).toString();
+                presentation.internet = (pm.checkPermission("android.permission.INTERNET", info.packageName) == PackageManager.PERMISSION_GRANTED);
+
+                int setting = pm.getApplicationEnabledSetting(info.packageName);
+                if (setting == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT)
+                    presentation.disabled = !info.applicationInfo.enabled;
+                else
+                    presentation.disabled = (setting != PackageManager.COMPONENT_ENABLED_STATE_ENABLED);
+
+                presentation.intent = pm.getLaunchIntentForPackage(info.packageName);
+                presentation.loaded = true;
+            }
+        }
+        return presentation;
+    }
 
-        this.intent = pm.getLaunchIntentForPackage(info.packageName);
+    // Returns null if the presentation wasn't loaded
+    public String getName() {
+        synchronized (presentation) {
+            return (presentation.loaded ? presentation.name : null);
+        }
     }
 
-    public static List<Rule> getRules(boolean all, String tag, Context context) {
+    // Copies the rules of the installed packages and applies the current settings
+    static List<Rule> getRules(Collection<Rule> installed, Predefined predefined, boolean all, Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         SharedPreferences wifi = context.getSharedPreferences("wifi", Context.MODE_PRIVATE);
         SharedPreferences other = context.getSharedPreferences("other", Context.MODE_PRIVATE);
@@ -98,61 +135,29 @@ public class Rule implements Comparable<Rule> {
         boolean default_roaming = prefs.getBoolean("whitelist_roaming", true);
         boolean manage_system = prefs.getBoolean("manage_system", false);
 
-        // Get predefined rules
-        Map<String, Boolean> pre_blocked = new HashMap<>();
-        Map<String, Boolean> pre_roaming = new HashMap<>();
-        Map<String, String[]> pre_related = new HashMap<>();
-        try {
-            XmlResourceParser xml = context.getResources().getXml(R.xml.predefined);
-            int eventType = xml.getEventType();
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                if (eventType == XmlPullParser.START_TAG)
-                    if ("rule".equals(xml.getName())) {
-                        String pkg = xml.getAttributeValue(null, "package");
-                        boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
-                        boolean proaming = xml.getAttributeBooleanValue(null, "roaming", default_roaming);
-                        pre_blocked.put(pkg, pblocked);
-                        pre_roaming.put(pkg, proaming);
-                        Log.d(tag, "Predefined " + pkg + " blocked=" + pblocked + " roaming=" + proaming);
-
-                    } else if ("relation".equals(xml.getName())) {
-                        String pkg = xml.getAttributeValue(null, "package");
-                        String[] rel = xml.getAttributeValue(null, "related").split(",");
-                        pre_related.put(pkg, rel);
-
-                        Log.d(tag, "Relation " + pkg + " related=" + TextUtils.join(",", rel));
-                    }
-
-                eventType = xml.next();
-            }
-        } catch (Throwable ex) {
-            Log.e(tag, ex.toString() + "\n" + Log.getStackTraceString(ex));
-            Util.sendCrashReport(ex, context);
-        }
-
         // Build rule list
         List<Rule> listRules = new ArrayList<>();
-        for (PackageInfo info : context.getPackageManager().getInstalledPackages(0)) {
-            boolean system = ((info.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
+        for (Rule installedRule : installed) {
+            boolean system = installedRule.system;
             if (!system || manage_system || all) {
-                Rule rule = new Rule(info, context);
+                Rule rule = new Rule(installedRule);
+                String packageName = rule.info.packageName;
 
-                rule.system = system;
-
-                rule.wifi_default = (pre_blocked.containsKey(info.packageName) ? pre_blocked.get(info.packageName) : default_wifi);
-                rule.other_default = (pre_blocked.containsKey(info.packageName) ? pre_blocked.get(info.packageName) : default_other);
+                Boolean pre_blocked = predefined.blocked.get(packageName);
+                Boolean pre_roaming = predefined.roaming.get(packageName);
+                rule.wifi_default = (pre_blocked == null ? default_wifi : pre_blocked);
+                rule.other_default = (pre_blocked == null ? default_other : pre_blocked);
                 rule.screen_wifi_default = default_screen_wifi;
                 rule.screen_other_default = default_screen_other;
-                rule.roaming_default = (pre_roaming.containsKey(info.packageName) ? pre_roaming.get(info.packageName) : default_roaming);
+                rule.roaming_default = (pre_roaming == null ? default_roaming : pre_roaming);
 
-                rule.wifi_blocked = (system && !manage_system ? false : wifi.getBoolean(info.packageName, rule.wifi_default));
-                rule.other_blocked = (system && !manage_system ? false : other.getBoolean(info.packageName, rule.other_default));
-                rule.screen_wifi = screen_wifi.getBoolean(info.packageName, rule.screen_wifi_default);
-                rule.screen_other = screen_other.getBoolean(info.packageName, rule.screen_other_default);
-                rule.roaming = roaming.getBoolean(info.packageName, rule.roaming_default);
+                rule.wifi_blocked = (system && !manage_system ? false : wifi.getBoolean(packageName, rule.wifi_default));
+                rule.other_blocked = (system && !manage_system ? false : other.getBoolean(packageName, rule.other_default));
+                rule.screen_wifi = screen_wifi.getBoolean(packageName, rule.screen_wifi_default);
+                rule.screen_other = screen_other.getBoolean(packageName, rule.screen_other_default);
+                rule.roaming = roaming.getBoolean(packageName, rule.roaming_default);
 
-                if (pre_related.containsKey(info.packageName))
-                    rule.related = pre_related.get(info.packageName);
+                rule.related = predefined.related.get(packageName);
 
                 rule.changed = (rule.wifi_blocked != default_wifi ||
                         rule.other_blocked != default_other ||
@@ -164,16 +169,53 @@ public class Rule implements Comparable<Rule> {
             }
         }
 
-        // Sort rule list
-        Collections.sort(listRules);
-
         return listRules;
     }
 
+    // Rules and relations of R.xml.predefined, a missing roaming attribute means the default
+    static class Predefined {
+        final Map<String, Boolean> blocked = new HashMap<>();
+        final Map<String, Boolean> roaming = new HashMap<>();
+        final Map<String, String[]> related = new HashMap<>();
+
+        static Predefined load(String tag, Context context) {
+            Predefined predefined = new Predefined();
+            try {
+                XmlResourceParser xml = context.getResources().getXml(R.xml.predefined);
+                int eventType = xml.getEventType();
+                while (eventType != XmlPullParser.END_DOCUMENT) {
+                    if (eventType == XmlPullParser.START_TAG)
+                        if ("rule".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            boolean pblocked = xml.getAttributeBooleanValue(null, "blocked", false);
+                            predefined.blocked.put(pkg, pblocked);
+                            if (xml.getAttributeValue(null, "roaming") != null)
+                                predefined.roaming.put(pkg, xml.getAttributeBooleanValue(null, "roaming", false));
+                            Log.d(tag, "Predefined " + pkg + " blocked=" + pblocked + " roaming=" + predefined.roaming.get(pkg));
+
+                        } else if ("relation".equals(xml.getName())) {
+                            String pkg = xml.getAttributeValue(null, "package");
+                            String[] rel = xml.getAttributeValue(null, "related").split(",");
+                            predefined.related.put(pkg, rel);
+
+                            Log.d(tag, "Relation " + pkg + " related=" + TextUtils.join(",", rel));
+                        }
+
+                    eventType = xml.next();
+                }
+            } catch (Throwable ex) {
+                Log.e(tag, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                Util.sendCrashReport(ex, context);
+            }
+            return predefined;
+        }
+    }
+
     @Override
+    // The presentation of both rules must have been loaded
     public int compareTo(Rule other) {
         if (changed == other.changed) {
-            int i = name.compareToIgnoreCase(other.name);
+            int i = presentation.name.compareToIgnoreCase(other.presentation.name);
             return (i == 0 ? info.packageName.compareTo(other.info.packageName) : i);
         }
         return (changed ? -1 : 1);
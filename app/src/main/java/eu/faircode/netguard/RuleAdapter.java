@@ -216,10 +216,11 @@ public class RuleAdapter extends RecyclerView.Adapter<RuleAdapter.ViewHolder> im
         }
 
         holder.ivExpander.setImageLevel(rule.attributes ? 1 : 0);
-        holder.tvName.setText(rule.name);
+        Rule.Presentation presentation = rule.getPresentation(context);
+        holder.tvName.setText(presentation.name);
 
         int color = rule.system ? colorAccent : colorText;
-        if (!rule.internet || rule.disabled)
+        if (!presentation.internet || presentation.disabled)
             color = Color.argb(128, Color.red(color), Color.green(color), Color.blue(color));
         holder.tvName.setTextColor(color);
 
@@ -247,8 +248,8 @@ public class RuleAdapter extends RecyclerView.Adapter<RuleAdapter.ViewHolder> im
         holder.tvVersion.setVisibility(debuggable ? View.VISIBLE : View.GONE);
         holder.tvVersion.setText(rule.info.versionName + '/' + rule.info.versionCode);
 
-        holder.tvDisabled.setVisibility(rule.disabled ? View.VISIBLE : View.GONE);
-        holder.tvInternet.setVisibility(rule.internet ? View.GONE : View.VISIBLE);
+        holder.tvDisabled.setVisibility(presentation.disabled ? View.VISIBLE : View.GONE);
+        holder.tvInternet.setVisibility(presentation.internet ? View.GONE : View.VISIBLE);
 
         holder.cbScreenWifi.setOnCheckedChangeListener(null);
         holder.cbScreenWifi.setChecked(rule.screen_wifi);
@@ -341,11 +342,11 @@ public class RuleAdapter extends RecyclerView.Adapter<RuleAdapter.ViewHolder> im
         });
 
         // Launch application
-        holder.btnLaunch.setVisibility(!debuggable || rule.intent == null ? View.GONE : View.VISIBLE);
+        holder.btnLaunch.setVisibility(!debuggable || presentation.intent == null ? View.GONE : View.VISIBLE);
         holder.btnLaunch.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                context.startActivity(rule.intent);
+                context.startActivity(rule.getPresentation(context).intent);
             }
         });
     }
@@ -415,7 +416,7 @@ public class RuleAdapter extends RecyclerView.Adapter<RuleAdapter.ViewHolder> im
                     query = query.toString().toLowerCase();
                     for (Rule rule : listAll)
                         if (rule.info.packageName.toLowerCase().contains(query) ||
-                                (rule.name != null && rule.name.toLowerCase().contains(query)) ||
+                                (rule.getName() != null && rule.getName().toLowerCase().contains(query)) ||
                                 (debuggable && rule.info.applicationInfo != null &&
                                         Integer.toString(rule.info.applicationInfo.uid).contains(query)))
                             listResult.add(rule);
@@ -0,0 +1,154 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Process wide list of the installed packages, queried from the package manager once
+// and updated per package when a package is added, replaced, changed or removed
+// Labels and other details for display are only loaded when the user interface needs them
+// Settings are applied to a copy of the list when rules are requested,
+// shared preferences are held in memory, so this doesn't do any IPC or I/O
+public class RuleRepository {
+    private static final String TAG = "NetGuard.Rules";
+
+    // The class lock is only held to read or change the list, never while querying the package manager,
+    // since the package receiver and the listeners use it on the main thread
+    private static Map<String, Rule> installed = null; // by package name
+    private static Map<String, Rule> pending = null; // changed while loading, null for removed
+    private static Rule.Predefined predefined = null;
+    private static final List<Listener> listeners = new ArrayList<>();
+    private static final Object loadLock = new Object(); // one thread loads, others wait for it
+
+    public interface Listener {
+        // Called on the main thread
+        void onPackagesChanged();
+    }
+
+    public static List<Rule> getRules(boolean all, Context context) {
+        List<Rule> snapshot;
+        Rule.Predefined pre;
+        synchronized (loadLock) {
+            if (installed == null)
+                load(context.getApplicationContext());
+        }
+        synchronized (RuleRepository.class) {
+            snapshot = new ArrayList<>(installed.values());
+            pre = predefined;
+        }
+        return Rule.getRules(snapshot, pre, all, context);
+    }
+
+    public static synchronized void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public static synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private static void load(Context context) {
+        long start = SystemClock.elapsedRealtime();
+
+        synchronized (RuleRepository.class) {
+            pending = new HashMap<>();
+        }
+
+        // Keep up to date for the lifetime of the process
+        // Changes during loading are collected and applied to the loaded list
+        IntentFilter ifPackage = new IntentFilter();
+        ifPackage.addAction(Intent.ACTION_PACKAGE_ADDED);
+        ifPackage.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        ifPackage.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        ifPackage.addDataScheme("package");
+        context.registerReceiver(packageReceiver, ifPackage);
+
+        Rule.Predefined pre = Rule.Predefined.load(TAG, context);
+        Map<String, Rule> loaded = new HashMap<>();
+        for (PackageInfo info : context.getPackageManager().getInstalledPackages(0))
+            loaded.put(info.packageName, Rule.fromPackage(info));
+
+        synchronized (RuleRepository.class) {
+            for (Map.Entry<String, Rule> entry : pending.entrySet())
+                if (entry.getValue() == null)
+                    loaded.remove(entry.getKey());
+                else
+                    loaded.put(entry.getKey(), entry.getValue());
+            pending = null;
+            predefined = pre;
+            installed = loaded;
+        }
+
+        Log.i(TAG, "Loaded packages=" + loaded.size() + " " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
+
+    private static BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String packageName = intent.getData().getSchemeSpecificPart();
+            boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+            Log.i(TAG, "Received " + intent.getAction() + " package=" + packageName + " replacing=" + replacing);
+
+            // A replaced package is removed first and added again
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && replacing)
+                return;
+
+            update(packageName, context);
+
+            List<Listener> copy;
+            synchronized (RuleRepository.class) {
+                copy = new ArrayList<>(listeners);
+            }
+            for (Listener listener : copy)
+                listener.onPackagesChanged();
+        }
+    };
+
+    private static void update(String packageName, Context context) {
+        Rule rule = null;
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(packageName, 0);
+            rule = Rule.fromPackage(info);
+        } catch (PackageManager.NameNotFoundException ignored) {
+            // Removed
+        }
+
+        synchronized (RuleRepository.class) {
+            if (installed == null)
+                pending.put(packageName, rule);
+            else if (rule == null)
+                installed.remove(packageName);
+            else
+                installed.put(packageName, rule);
+        }
+    }
+}
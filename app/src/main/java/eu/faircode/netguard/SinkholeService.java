@@ -38,17 +38,17 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.NotificationManagerCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
 
 public class SinkholeService extends VpnService {
     private static final String TAG = "NetGuard.Service";
@@ -56,16 +56,54 @@ public class SinkholeService extends VpnService {
     private boolean last_roaming;
     private ParcelFileDescriptor vpn = null;
     private boolean debug = false;
-    private Thread debugThread = null;
+    private BufferPool pool = null;
+    private PacketPipeline pipeline = null;
+    private UidResolver resolver = null;
 
     private volatile Looper mServiceLooper;
     private volatile ServiceHandler mServiceHandler;
 
+    // Reload numbers are assigned by the main thread, reloads are executed by the handler thread
+    private volatile int reloadRequested = 0;
+    private int reloadSuperseded = 0; // reloads up to this number were superseded by a start or stop
+    private int reloadExecuted = 0;
+    private int reloadSkipped = 0;
+    private long vpnFingerprint = 0; // of the configuration of the running tunnel
+
+    // Evaluated rules, rebuilt by the handler thread after a rule or package change
+    private AllowTable allowTable = null;
+    private boolean useMetered;
+    private volatile boolean rulesChanged = true;
+
     private static final int NOTIFY_FOREGROUND = 1;
     private static final int NOTIFY_DISABLED = 2;
 
     private static final String EXTRA_COMMAND = "Command";
 
+    private static final int TUN_BUFFERS = 32;
+    private static final int TUN_BUFFER_SIZE = 32767;
+    private static final int TUN_WORKERS = 2;
+    private static final int TUN_QUEUE = 8;
+
+    private static final long OVERLOAD_INTERVAL = 1000; // milliseconds
+    private static final int OVERLOAD_WORK = 50;
+    private static final int OVERLOAD_REPLIES = 1000;
+
+    private static final int UID_BATCH = 8;
+
+    private static final int CONNTRACK_FLOWS = 2048; // per worker
+    private static final long CONNTRACK_TCP = 120 * 1000L; // milliseconds, covers SYN retries
+    private static final long CONNTRACK_UDP = 60 * 1000L;
+    private static final int CONNTRACK_TOP = 5; // flows in the stats
+    private static final int VERDICT_SLOTS = 256; // per worker
+    private static final long VERDICT_TTL = 30 * 1000L; // milliseconds
+    private static final int FRAGMENT_DATAGRAMS = 8; // per worker
+    private static final long FRAGMENT_TIMEOUT = 15 * 1000L; // milliseconds
+    private static final long UID_REFRESH = 100; // milliseconds
+    private static final String UID_WAIT = "20"; // milliseconds
+
+    private static final long RELOAD_DELAY = 500; // milliseconds
+
     private enum Command {start, reload, stop}
 
     private static volatile PowerManager.WakeLock wlInstance = null;
@@ -87,7 +125,12 @@ public class SinkholeService extends VpnService {
         @Override
         public void handleMessage(Message msg) {
             try {
-                handleIntent((Intent) msg.obj);
+                // Only the last reload requested is executed
+                if (msg.what == Command.reload.ordinal() &&
+                        (msg.arg2 != reloadRequested || msg.arg2 <= reloadSuperseded))
+                    Log.i(TAG, "Reload " + msg.arg2 + " superseded");
+                else
+                    handleIntent((Intent) msg.obj);
             } catch (Throwable ex) {
                 Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
                 Util.sendCrashReport(ex, SinkholeService.this);
@@ -113,8 +156,10 @@ public class SinkholeService extends VpnService {
                 switch (cmd) {
                     case start:
                         if (vpn == null) {
+                            // The new tunnel has the current rules, pending reloads are obsolete
+                            reloadSuperseded = reloadRequested;
                             startForeground(NOTIFY_FOREGROUND, getForegroundNotification(0, 0));
-                            vpn = startVPN();
+                            vpn = startVPN(getTunnelConfig());
                             if (vpn == null)
                                 throw new IllegalStateException("VPN start failed");
                             startDebug(vpn);
@@ -124,15 +169,25 @@ public class SinkholeService extends VpnService {
                         break;
 
                     case reload:
+                        // Keep the running tunnel if it would be rebuilt the same
+                        TunnelConfig config = getTunnelConfig();
+                        if (vpn != null && config.getFingerprint() == vpnFingerprint) {
+                            updateNotification(config);
+                            reloadSkipped++;
+                            Log.i(TAG, "Reloads requested=" + reloadRequested +
+                                    " executed=" + reloadExecuted + " skipped=" + reloadSkipped);
+                            break;
+                        }
+
                         // Seamless handover
                         ParcelFileDescriptor prev = vpn;
-                        vpn = startVPN();
+                        vpn = startVPN(config);
                         if (prev != null && vpn == null) {
                             Log.w(TAG, "Handover failed");
                             stopDebug();
                             stopVPN(prev);
                             prev = null;
-                            vpn = startVPN();
+                            vpn = startVPN(config);
                             if (vpn == null)
                                 throw new IllegalStateException("Handover failed");
                         }
@@ -140,13 +195,19 @@ public class SinkholeService extends VpnService {
                         startDebug(vpn);
                         if (prev != null)
                             stopVPN(prev);
+                        reloadExecuted++;
+                        Log.i(TAG, "Reloads requested=" + reloadRequested +
+                                " executed=" + reloadExecuted + " skipped=" + reloadSkipped);
                         break;
 
                     case stop:
                         if (vpn != null) {
+                            // Pending reloads shouldn't restart the tunnel
+                            reloadSuperseded = reloadRequested;
                             stopDebug();
                             stopVPN(vpn);
                             vpn = null;
+                            vpnFingerprint = 0;
                             stopForeground(true);
                             Widget.updateWidgets(SinkholeService.this);
                             // Don't call stopSelf, since a start can follow
@@ -166,14 +227,23 @@ public class SinkholeService extends VpnService {
         }
     }
 
-    private ParcelFileDescriptor startVPN() {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    // Decides which applications bypass the tunnel in the current state
+    private TunnelConfig getTunnelConfig() {
+        // Evaluate the rules for all states once, until a rule changes
+        if (allowTable == null || rulesChanged) {
+            rulesChanged = false;
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+            useMetered = prefs.getBoolean("use_metered", false);
+            List<Rule> listRule = RuleRepository.getRules(true, this);
+            UidCache.fill(listRule);
+            allowTable = new AllowTable(listRule);
+            Log.i(TAG, "Rules=" + allowTable.size());
+        }
 
         // Check state
         boolean wifi = Util.isWifiActive(this);
         boolean metered = Util.isMeteredNetwork(this);
         boolean interactive = Util.isInteractive(this);
-        boolean useMetered = prefs.getBoolean("use_metered", false);
         Log.i(TAG, "Starting wifi=" + wifi +
                 " metered=" + metered + "/" + useMetered +
                 " roaming=" + last_roaming +
@@ -182,51 +252,55 @@ public class SinkholeService extends VpnService {
         if (wifi && !useMetered)
             metered = false;
 
+        // Add list of allowed applications
+        TunnelConfig config = new TunnelConfig();
+        allowTable.fill(config, AllowTable.getState(metered, interactive, last_roaming));
+        if (debug)
+            for (String packageName : config.allowed)
+                Log.i(TAG, "Allowing " + packageName);
+        config.blocking = debug;
+        Log.i(TAG, "Allowed=" + config.allowed.size() + " blocked=" + config.blocked);
+
+        return config;
+    }
+
+    private ParcelFileDescriptor startVPN(TunnelConfig config) {
         // Build VPN service
         final Builder builder = new Builder();
         builder.setSession(getString(R.string.app_name) + " session");
-        // TODO: make tunnel parameters configurable
-        builder.addAddress("10.1.10.1", 32);
-        builder.addAddress("fd00:1:fd00:1:fd00:1:fd00:1", 64);
-        builder.addRoute("0.0.0.0", 0);
-        builder.addRoute("0:0:0:0:0:0:0:0", 0);
+        builder.addAddress(TunnelConfig.ADDRESS4, TunnelConfig.PREFIX4);
+        builder.addAddress(TunnelConfig.ADDRESS6, TunnelConfig.PREFIX6);
+        builder.addRoute(TunnelConfig.ROUTE4, 0);
+        builder.addRoute(TunnelConfig.ROUTE6, 0);
 
-        // Add list of allowed applications
-        int nAllowed = 0;
-        int nBlocked = 0;
-        for (Rule rule : Rule.getRules(true, TAG, this)) {
-            boolean blocked = (metered ? rule.other_blocked : rule.wifi_blocked);
-            boolean screen = (metered ? rule.screen_other : rule.screen_wifi);
-            if ((!blocked || (screen && interactive)) && (!metered || !(rule.roaming && last_roaming))) {
-                nAllowed++;
-                if (debug)
-                    Log.i(TAG, "Allowing " + rule.info.packageName);
-                try {
-                    builder.addDisallowedApplication(rule.info.packageName);
-                } catch (PackageManager.NameNotFoundException ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    Util.sendCrashReport(ex, this);
-                }
-            } else
-                nBlocked++;
-        }
-        Log.i(TAG, "Allowed=" + nAllowed + " blocked=" + nBlocked);
+        for (String packageName : config.allowed)
+            try {
+                builder.addDisallowedApplication(packageName);
+            } catch (PackageManager.NameNotFoundException ex) {
+                Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
+                Util.sendCrashReport(ex, this);
+            }
 
-        // Update notification
-        Notification notification = getForegroundNotification(nAllowed, nBlocked);
-        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-        nm.notify(NOTIFY_FOREGROUND, notification);
+        updateNotification(config);
 
         // Build configure intent
         Intent configure = new Intent(this, ActivityMain.class);
         PendingIntent pi = PendingIntent.getActivity(this, 0, configure, PendingIntent.FLAG_UPDATE_CURRENT);
         builder.setConfigureIntent(pi);
 
-        if (debug)
+        if (config.blocking)
             builder.setBlocking(true);
 
         // Start VPN service
-        return builder.establish();
+        ParcelFileDescriptor pfd = builder.establish();
+        vpnFingerprint = (pfd == null ? 0 : config.getFingerprint());
+        return pfd;
+    }
+
+    private void updateNotification(TunnelConfig config) {
+        Notification notification = getForegroundNotification(config.allowed.size(), config.blocked);
+        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        nm.notify(NOTIFY_FOREGROUND, notification);
     }
 
     private void stopVPN(ParcelFileDescriptor pfd) {
@@ -243,78 +317,221 @@ public class SinkholeService extends VpnService {
         if (pfd == null || !debug)
             return;
 
-        debugThread = new Thread(new Runnable() {
+        if (pool == null)
+            pool = new BufferPool(TUN_BUFFERS, TUN_BUFFER_SIZE);
+        if (resolver == null) {
+            // Exact kernel queries when allowed, else scanning the socket tables
+            resolver = NetlinkUidResolver.create();
+            if (resolver == null)
+                resolver = new ProcUidResolver(UID_REFRESH);
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        final PacketValidator.Level level = getValidationLevel(prefs);
+        final long uidWait = getUidWait(prefs) * 1000000L;
+
+        pipeline = new PacketPipeline(TUN_WORKERS, TUN_QUEUE, pool, new PacketPipeline.WorkerFactory() {
             @Override
-            public void run() {
-                FileInputStream in = null;
-                FileOutputStream out = null;
-                try {
-                    in = new FileInputStream(pfd.getFileDescriptor());
-                    out = new FileOutputStream(pfd.getFileDescriptor());
-
-                    ByteBuffer buffer = ByteBuffer.allocate(32767);
-                    buffer.order(ByteOrder.BIG_ENDIAN);
-
-                    Log.i(TAG, "Start receiving");
-                    while (!Thread.currentThread().isInterrupted() &&
-                            pfd.getFileDescriptor() != null &&
-                            pfd.getFileDescriptor().valid())
-                        try {
-                            buffer.clear();
-                            int length = in.read(buffer.array());
-                            if (length > 0) {
-                                buffer.limit(length);
-                                Packet pkt = new Packet(buffer);
-
-                                if (pkt.IPv4.protocol == Packet.IPv4Header.TCP && pkt.TCP.SYN) {
-                                    int uid = pkt.getUid4();
-                                    if (uid < 0)
-                                        Log.w(TAG, "uid not found");
-
-                                    String[] pkg = getPackageManager().getPackagesForUid(uid);
-                                    if (pkg == null)
-                                        pkg = new String[]{uid == 0 ? "root" : "unknown"};
-
-                                    Log.i(TAG, "Connect " + pkt.IPv4.destinationAddress + ":" + pkt.TCP.destinationPort + " uid=" + uid + " pkg=" + pkg[0]);
-
-                                    // Send RST
-                                    pkt.swapAddresses();
-                                    pkt.TCP.clearFlags();
-                                    pkt.TCP.RST = true;
-                                    long ack = pkt.TCP.acknowledgementNumber;
-                                    pkt.TCP.acknowledgementNumber = (pkt.TCP.sequenceNumber + 1) & 0xFFFFFFFFL;
-                                    pkt.TCP.sequenceNumber = (ack + 1) & 0xFFFFFFFFL;
-                                    pkt.send(out);
-                                }
-                            }
-                        } catch (Throwable ex) {
-                            Log.e(TAG, ex.toString());
-                            Util.sendCrashReport(ex, SinkholeService.this);
-                        }
-                    Log.i(TAG, "End receiving");
-                } catch (Throwable ex) {
-                    Log.e(TAG, ex.toString() + "\n" + Log.getStackTraceString(ex));
-                    Util.sendCrashReport(ex, SinkholeService.this);
-                } finally {
-                    try {
-                        if (in != null)
-                            in.close();
-                    } catch (IOException ignored) {
-                    }
-                    try {
-                        if (out != null)
-                            out.close();
-                    } catch (IOException ignored) {
-                    }
-                }
+            public PacketPipeline.Worker create() {
+                return new PacketWorker(level, uidWait);
             }
-        }, getString(R.string.app_name) + " debug");
-        debugThread.start();
+        }, this);
+        pipeline.start(pfd.getFileDescriptor(), getString(R.string.app_name));
+    }
+
+    // A bad stored value must not fail the start of the VPN
+    private static PacketValidator.Level getValidationLevel(SharedPreferences prefs) {
+        try {
+            return PacketValidator.Level.valueOf(prefs.getString("validation", PacketValidator.Level.header.name()));
+        } catch (Throwable ex) {
+            Log.w(TAG, "Invalid validation level, using header: " + ex);
+            return PacketValidator.Level.header;
+        }
+    }
+
+    private static int getUidWait(SharedPreferences prefs) {
+        try {
+            int wait = Integer.parseInt(prefs.getString("uid_wait", UID_WAIT));
+            if (wait > 0)
+                return wait;
+        } catch (Throwable ex) {
+            Log.w(TAG, "Invalid uid wait: " + ex);
+        }
+        return Integer.parseInt(UID_WAIT);
     }
 
     private void stopDebug() {
-        if (debugThread != null)
-            debugThread.interrupt();
+        if (pipeline != null) {
+            pipeline.stop();
+            Log.i(TAG, "Pipeline " + pipeline);
+            for (PacketPipeline.Worker worker : pipeline.getWorkers())
+                Log.i(TAG, "Worker " + worker);
+            Log.i(TAG, "Uid " + resolver);
+            pipeline = null;
+        }
+    }
+
+    // Runs on a pipeline worker thread, the factory creates one per worker
+    // Not thread safe, use one instance per worker, the same goes for the packet state it owns
+    private class PacketWorker implements PacketPipeline.Worker {
+        private final PacketView view = new PacketView();
+        private final PacketValidator validator;
+        private final PacketClassifier classifier = new PacketClassifier();
+        private final OverloadPolicy policy = new OverloadPolicy(OVERLOAD_INTERVAL, OVERLOAD_WORK, OVERLOAD_REPLIES);
+        private final UidBatch batch;
+        private final ConnTrack conntrack = new ConnTrack(CONNTRACK_FLOWS, CONNTRACK_TCP, CONNTRACK_UDP);
+        private final VerdictCache verdicts = new VerdictCache(VERDICT_SLOTS, VERDICT_TTL);
+        private final FragmentReassembler fragments = new FragmentReassembler(FRAGMENT_DATAGRAMS, TUN_BUFFER_SIZE, FRAGMENT_TIMEOUT);
+        private boolean held = false;
+
+        public PacketWorker(PacketValidator.Level level, long uidWait) {
+            validator = new PacketValidator(level);
+            batch = new UidBatch(UID_BATCH, uidWait);
+
+            classifier.setHandler(PacketClassifier.TCP_SYN, new PacketClassifier.Handler() {
+                @Override
+                public boolean handle(ByteBuffer buffer) {
+                    // Retries of a rejected SYN get the same RST again
+                    if (verdicts.reply(buffer, SystemClock.elapsedRealtime()))
+                        return true;
+                    return (validator.wrap(view, buffer) && reject(buffer, ConnTrack.RESET));
+                }
+            });
+
+            classifier.setHandler(PacketClassifier.TCP_OTHER, new PacketClassifier.Handler() {
+                @Override
+                public boolean handle(ByteBuffer buffer) {
+                    if (!validator.wrap(view, buffer) || (view.getFlags() & PacketView.RST) != 0)
+                        return false;
+
+                    // Answer segments of rejected flows, drop others
+                    long now = SystemClock.elapsedRealtime();
+                    if (policy.admit(view.getFlowHash(), now) == OverloadPolicy.DROP)
+                        return false;
+                    int flow = conntrack.find(view, now);
+                    return (flow >= 0 && reply(conntrack.getVerdict(flow)));
+                }
+            });
+
+            classifier.setHandler(PacketClassifier.FRAGMENT, new PacketClassifier.Handler() {
+                @Override
+                public boolean handle(ByteBuffer buffer) throws IOException {
+                    // Fragments are dropped, the datagram is handled when complete
+                    // IPv6 fragments are not reassembled
+                    if ((buffer.get(0) & 0xFF) >> 4 != 4 || !fragments.add(buffer, SystemClock.elapsedRealtime()))
+                        return false;
+                    return classifier.dispatch(buffer);
+                }
+            });
+
+            classifier.setHandler(PacketClassifier.UDP, new PacketClassifier.Handler() {
+                @Override
+                public boolean handle(ByteBuffer buffer) {
+                    return (validator.wrap(view, buffer) && !view.isMulticast() && reject(buffer, ConnTrack.UNREACHABLE));
+                }
+            });
+
+            // Other packets are dropped
+        }
+
+        // Returns true if the buffer now holds the reply
+        private boolean reject(ByteBuffer buffer, int verdict) {
+            long now = SystemClock.elapsedRealtime();
+            int action = policy.admit(view.getFlowHash(), now);
+            if (action == OverloadPolicy.DROP)
+                return false;
+
+            // Known flows are decided without attribution
+            int flow = conntrack.find(view, now);
+            if (flow >= 0)
+                return reply(conntrack.getVerdict(flow));
+
+            if (action == OverloadPolicy.FULL) {
+                int uid = resolver.lookup(view);
+                // Unknown sockets are attributed with the next scan
+                if (uid < 0 && batch.add(buffer, System.nanoTime())) {
+                    held = true;
+                    return false;
+                }
+                log(uid);
+                conntrack.add(view, uid, verdict, now);
+            }
+
+            return reply(verdict);
+        }
+
+        private boolean reply(int verdict) {
+            if (verdict == ConnTrack.RESET) {
+                boolean syn = view.isSYN();
+                view.reset();
+                if (syn)
+                    verdicts.put(view.getBuffer(), SystemClock.elapsedRealtime());
+                return true;
+            } else if (verdict == ConnTrack.UNREACHABLE) {
+                view.unreachable();
+                return true;
+            } else
+                return false;
+        }
+
+        private void log(int uid) {
+            if (uid < 0)
+                Log.w(TAG, "uid not found");
+
+            UidCache.Entry entry = UidCache.get(uid);
+            String pkg = (entry == null ? (uid == 0 ? "root" : "unknown") : entry.packages[0]);
+
+            Log.i(TAG, (view.isTCP() ? "Connect " : "Datagram ") +
+                    view.getDestinationAddress() + ":" + view.getDestinationPort() + " uid=" + uid + " pkg=" + pkg +
+                    (entry == null || entry.label == null ? "" : " app=" + entry.label));
+        }
+
+        @Override
+        public int process(ByteBuffer buffer) throws IOException {
+            held = false;
+            if (classifier.dispatch(buffer))
+                return REPLY;
+            return (held ? HOLD : DROP);
+        }
+
+        @Override
+        public long flush(PacketPipeline.Sink sink, boolean force) {
+            long time = SystemClock.elapsedRealtime();
+            conntrack.expire(time);
+            fragments.expire(time);
+
+            long now = System.nanoTime();
+            if (!force && !batch.isDue(now))
+                return batch.getDelay(now);
+
+            // Each socket table is read at most once for all pending packets
+            boolean scanned = false;
+            for (int i = 0; i < batch.size(); i++) {
+                ByteBuffer buffer = batch.get(i);
+                if (view.wrap(buffer)) {
+                    // Retransmissions can be held together with the original
+                    int verdict = (view.isTCP() ? ConnTrack.RESET : ConnTrack.UNREACHABLE);
+                    if (conntrack.find(view, time) < 0) {
+                        if (resolver.refresh(view, batch.getOldest()))
+                            scanned = true;
+                        int uid = resolver.lookup(view);
+                        log(uid);
+                        conntrack.add(view, uid, verdict, time);
+                    }
+                    reply(verdict);
+                    sink.reply(buffer);
+                } else
+                    sink.release(buffer);
+            }
+            batch.clear(scanned);
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "packets " + classifier + " validation " + validator + " overload " + policy + " uid " + batch + " conntrack " + conntrack + " verdicts " + verdicts + " fragments " + fragments +
+                    " top " + conntrack.getTop(CONNTRACK_TOP, SystemClock.elapsedRealtime());
+        }
     }
 
     private BroadcastReceiver interactiveStateReceiver = new BroadcastReceiver() {
@@ -366,11 +583,37 @@ public class SinkholeService extends VpnService {
         }
     };
 
+    private RuleRepository.Listener packagesChangedListener = new RuleRepository.Listener() {
+        @Override
+        public void onPackagesChanged() {
+            rulesChanged = true;
+        }
+    };
+
+    // Settings used by Rule.getRules, per package and defaults
+    private static final String[] RULE_PREFERENCES = new String[]{"wifi", "other", "screen_wifi", "screen_other", "roaming"};
+    private static final List<String> RULE_DEFAULTS = Arrays.asList(
+            "whitelist_wifi", "whitelist_other", "screen_wifi", "screen_other", "whitelist_roaming",
+            "manage_system", "use_metered");
+
+    private SharedPreferences.OnSharedPreferenceChangeListener rulesChangedListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            if (prefs != PreferenceManager.getDefaultSharedPreferences(SinkholeService.this) || RULE_DEFAULTS.contains(key))
+                rulesChanged = true;
+        }
+    };
+
     private BroadcastReceiver packageAddedReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             Log.i(TAG, "Received " + intent);
             Util.logExtras(intent);
+
+            int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (uid >= 0)
+                UidCache.update(uid, context);
+
             reload(null, SinkholeService.this);
         }
     };
@@ -411,6 +654,12 @@ public class SinkholeService extends VpnService {
         ifPackage.addAction(Intent.ACTION_PACKAGE_ADDED);
         ifPackage.addDataScheme("package");
         registerReceiver(packageAddedReceiver, ifPackage);
+
+        // Listen for rule changes
+        RuleRepository.addListener(packagesChangedListener);
+        PreferenceManager.getDefaultSharedPreferences(this).registerOnSharedPreferenceChangeListener(rulesChangedListener);
+        for (String name : RULE_PREFERENCES)
+            getSharedPreferences(name, Context.MODE_PRIVATE).registerOnSharedPreferenceChangeListener(rulesChangedListener);
     }
 
     @Override
@@ -440,9 +689,17 @@ public class SinkholeService extends VpnService {
 
         // Queue command
         Message msg = mServiceHandler.obtainMessage();
+        msg.what = cmd.ordinal();
         msg.arg1 = startId;
         msg.obj = intent;
-        mServiceHandler.sendMessage(msg);
+        if (cmd == Command.reload) {
+            // Reloads requested in quick succession are collapsed into the last one
+            msg.arg2 = ++reloadRequested;
+            mServiceHandler.sendMessageDelayed(msg, RELOAD_DELAY);
+        } else {
+            // Start and stop go first, they decide themselves which pending reloads are obsolete
+            mServiceHandler.sendMessage(msg);
+        }
 
         return START_STICKY;
     }
@@ -473,6 +730,10 @@ public class SinkholeService extends VpnService {
             unregisterReceiver(idleStateReceiver);
         unregisterReceiver(connectivityChangedReceiver);
         unregisterReceiver(packageAddedReceiver);
+        RuleRepository.removeListener(packagesChangedListener);
+        PreferenceManager.getDefaultSharedPreferences(this).unregisterOnSharedPreferenceChangeListener(rulesChangedListener);
+        for (String name : RULE_PREFERENCES)
+            getSharedPreferences(name, Context.MODE_PRIVATE).unregisterOnSharedPreferenceChangeListener(rulesChangedListener);
 
         if (vpn != null) {
             stopDebug();
@@ -480,6 +741,11 @@ public class SinkholeService extends VpnService {
             vpn = null;
         }
 
+        if (resolver != null) {
+            resolver.close();
+            resolver = null;
+        }
+
         super.onDestroy();
     }
 
@@ -0,0 +1,78 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Everything passed to VpnService.Builder, summarized in a fingerprint
+// Two configurations with the same fingerprint result in the same tunnel
+public class TunnelConfig {
+    // TODO: make tunnel parameters configurable
+    public static final String ADDRESS4 = "10.1.10.1";
+    public static final int PREFIX4 = 32;
+    public static final String ADDRESS6 = "fd00:1:fd00:1:fd00:1:fd00:1";
+    public static final int PREFIX6 = 64;
+    public static final String ROUTE4 = "0.0.0.0";
+    public static final String ROUTE6 = "0:0:0:0:0:0:0:0";
+
+    public final List<String> allowed = new ArrayList<>(); // packages bypassing the tunnel
+    public int blocked = 0;
+    public boolean blocking = false;
+
+    private long packages = 0; // sum of the hashes of the allowed packages and their uids
+
+    // The builder resolves package names to uids, a reinstalled package has a new uid
+    public void allow(String packageName, int uid) {
+        allowed.add(packageName);
+        packages += mix(hash(packageName) + uid);
+    }
+
+    // The order of the allowed packages doesn't matter
+    public long getFingerprint() {
+        long fingerprint = mix(hash(ADDRESS4) + PREFIX4);
+        fingerprint = fingerprint * 31 + mix(hash(ADDRESS6) + PREFIX6);
+        fingerprint = fingerprint * 31 + mix(hash(ROUTE4));
+        fingerprint = fingerprint * 31 + mix(hash(ROUTE6));
+        fingerprint = fingerprint * 31 + (blocking ? 1 : 0);
+        fingerprint = fingerprint * 31 + allowed.size();
+        return mix(fingerprint * 31 + packages);
+    }
+
+    // FNV-1a
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    // MurmurHash3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,96 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.ByteBuffer;
+
+// Packets waiting for uid attribution, resolved together with a single scan of the socket tables
+// A batch is due when it is full or its oldest packet has waited the maximum time
+public class UidBatch {
+    private final ByteBuffer[] pending;
+    private final long maxWait;
+    private int count = 0;
+    private long oldest = 0;
+
+    private long batches = 0;
+    private long packets = 0;
+    private long scans = 0;
+    private int maxCount = 0;
+
+    public UidBatch(int size, long maxWaitNanos) {
+        this.pending = new ByteBuffer[size];
+        this.maxWait = maxWaitNanos;
+    }
+
+    // Returns false when the batch is full
+    public boolean add(ByteBuffer buffer, long now) {
+        if (count == pending.length)
+            return false;
+        if (count == 0)
+            oldest = now;
+        pending[count++] = buffer;
+        return true;
+    }
+
+    public boolean isDue(long now) {
+        return (count == pending.length || (count > 0 && now - oldest >= maxWait));
+    }
+
+    // Nanoseconds until the batch is due, Long.MAX_VALUE when empty
+    public long getDelay(long now) {
+        if (count == 0)
+            return Long.MAX_VALUE;
+        return Math.max(0, oldest + maxWait - now);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public ByteBuffer get(int index) {
+        return pending[index];
+    }
+
+    // Arrival time of the oldest packet, the socket tables need to be read after this
+    public long getOldest() {
+        return oldest;
+    }
+
+    public void clear(boolean scanned) {
+        batches++;
+        packets += count;
+        if (scanned)
+            scans++;
+        if (count > maxCount)
+            maxCount = count;
+        for (int i = 0; i < count; i++)
+            pending[i] = null;
+        count = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "batches=" + batches +
+                " scans=" + scans +
+                " packets=" + packets +
+                " per scan=" + (scans == 0 ? 0 : (float) packets / scans) +
+                " max=" + maxCount;
+    }
+}
@@ -0,0 +1,98 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.List;
+
+// Process wide uid to packages and label map, so naming an app doesn't need package manager IPC
+// Filled from the rules and updated per uid on package changes
+// Readers get an immutable snapshot, writers replace it
+public class UidCache {
+    private static final String TAG = "NetGuard.UidCache";
+
+    public static class Entry {
+        public final String[] packages;
+        public final String label; // null until the application was displayed or updated
+
+        public Entry(String[] packages, String label) {
+            this.packages = packages;
+            this.label = label;
+        }
+    }
+
+    private static volatile SparseArray<Entry> entries = new SparseArray<>();
+
+    // Returns null for unknown uids, never calls the package manager
+    public static Entry get(int uid) {
+        return entries.get(uid);
+    }
+
+    public static void fill(List<Rule> rules) {
+        SparseArray<Entry> fresh = new SparseArray<>(rules.size());
+        for (Rule rule : rules) {
+            int uid = rule.info.applicationInfo.uid;
+            Entry entry = fresh.get(uid);
+            if (entry == null)
+                fresh.put(uid, new Entry(new String[]{rule.info.packageName}, rule.getName()));
+            else {
+                // Shared uid
+                String[] packages = new String[entry.packages.length + 1];
+                System.arraycopy(entry.packages, 0, packages, 0, entry.packages.length);
+                packages[entry.packages.length] = rule.info.packageName;
+                fresh.put(uid, new Entry(packages, entry.label));
+            }
+        }
+        synchronized (UidCache.class) {
+            entries = fresh;
+        }
+        Log.i(TAG, "Filled uids=" + fresh.size());
+    }
+
+    // Rereads one uid after a package was added or removed
+    public static void update(int uid, Context context) {
+        Entry entry = null;
+        PackageManager pm = context.getPackageManager();
+        String[] packages = pm.getPackagesForUid(uid);
+        if (packages != null && packages.length > 0)
+            try {
+                ApplicationInfo info = pm.getApplicationInfo(packages[0], 0);
+                entry = new Entry(packages, pm.getApplicationLabel(info).toString());
+            } catch (PackageManager.NameNotFoundException ex) {
+                // Removed in the meantime
+                Log.w(TAG, ex.toString());
+            }
+
+        synchronized (UidCache.class) {
+            SparseArray<Entry> copy = entries.clone();
+            if (entry == null)
+                copy.remove(uid);
+            else
+                copy.put(uid, entry);
+            entries = copy;
+        }
+        Log.i(TAG, "Updated uid=" + uid + " packages=" + (entry == null ? 0 : entry.packages.length));
+    }
+}
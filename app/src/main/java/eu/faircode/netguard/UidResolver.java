@@ -0,0 +1,33 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+// Finds the uid owning the local socket a packet in the tunnel was sent from
+// Implementations are shared by the pipeline workers
+public interface UidResolver {
+    // Returns -1 when the socket is unknown
+    int lookup(PacketView view);
+
+    // Makes sockets created before the given System.nanoTime() known to lookup of the packet
+    // Returns true if this required reading the socket tables
+    boolean refresh(PacketView view, long after);
+
+    void close();
+}
@@ -0,0 +1,156 @@
+package eu.faircode.netguard;
+
+/*
+    This file is part of NetGuard.
+
+    NetGuard is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    NetGuard is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with NetGuard.  If not, see <http://www.gnu.org/licenses/>.
+
+    Copyright 2015 by Marcel Bokhorst (M66B)
+*/
+
+import java.nio.ByteBuffer;
+
+// Remembers the RST sent for a SYN, keyed on source port, destination address and destination port
+// A retransmitted SYN has the same sequence number, so the RST for it is byte for byte the same
+// and is copied from the template without parsing, validation or attribution
+// Direct mapped and time bounded
+public class VerdictCache {
+    private static final int TEMPLATE = 60 + 20; // largest IPv4 header + TCP header
+
+    private final int mask;
+    private final long ttl;
+
+    private final long[] highs;
+    private final long[] lows;
+    private final int[] ports; // source port << 16 | destination port of the SYN
+    private final int[] seqs;
+    private final byte[] versions;
+    private final long[] expires;
+    private final int[] lengths;
+    private final byte[] templates;
+
+    private long lookups = 0;
+    private long hits = 0;
+    private long stale = 0;
+    private long stored = 0;
+
+    public VerdictCache(int size, long ttl) {
+        int capacity = 1;
+        while (capacity < size)
+            capacity <<= 1;
+        this.mask = capacity - 1;
+        this.ttl = ttl;
+
+        highs = new long[capacity];
+        lows = new long[capacity];
+        ports = new int[capacity];
+        seqs = new int[capacity];
+        versions = new byte[capacity];
+        expires = new long[capacity];
+        lengths = new int[capacity];
+        templates = new byte[capacity * TEMPLATE];
+    }
+
+    // Replaces a SYN by the cached RST, returns false if there is none
+    public boolean reply(ByteBuffer buffer, long now) {
+        lookups++;
+
+        int version = (buffer.get(0) & 0xFF) >> 4;
+        int tcp;
+        long high;
+        long low;
+        if (version == 4) {
+            tcp = (buffer.get(0) & 0xF) * 4;
+            high = 0;
+            low = ProcNetParser.MAPPED | (buffer.getInt(16) & 0xFFFFFFFFL);
+        } else if (version == 6 && buffer.get(6) == PacketView.TCP) {
+            tcp = 40;
+            high = buffer.getLong(24);
+            low = buffer.getLong(32);
+        } else
+            return false;
+        if (tcp + 20 > buffer.limit())
+            return false;
+
+        int port = buffer.getInt(tcp);
+        int slot = slot(high, low, port);
+        if (lengths[slot] == 0 || lows[slot] != low || ports[slot] != port ||
+                highs[slot] != high || versions[slot] != version)
+            return false;
+        if (expires[slot] < now || seqs[slot] != buffer.getInt(tcp + 4)) {
+            stale++;
+            return false;
+        }
+
+        int length = lengths[slot];
+        buffer.limit(buffer.capacity());
+        buffer.position(0);
+        buffer.put(templates, slot * TEMPLATE, length);
+        buffer.position(0);
+        buffer.limit(length);
+        hits++;
+        return true;
+    }
+
+    // Stores a RST built by PacketView.reset, the key is taken from the swapped fields
+    public void put(ByteBuffer reply, long now) {
+        int length = reply.limit();
+        if (length > TEMPLATE)
+            return;
+
+        int version = (reply.get(0) & 0xFF) >> 4;
+        int tcp;
+        long high;
+        long low;
+        if (version == 4) {
+            tcp = (reply.get(0) & 0xF) * 4;
+            high = 0;
+            low = ProcNetParser.MAPPED | (reply.getInt(12) & 0xFFFFFFFFL);
+        } else {
+            tcp = 40;
+            high = reply.getLong(8);
+            low = reply.getLong(16);
+        }
+        int swapped = reply.getInt(tcp);
+        int port = (swapped << 16) | (swapped >>> 16);
+
+        int slot = slot(high, low, port);
+        highs[slot] = high;
+        lows[slot] = low;
+        ports[slot] = port;
+        seqs[slot] = reply.getInt(tcp + 8) - 1; // acknowledges the SYN
+        versions[slot] = (byte) version;
+        expires[slot] = now + ttl;
+        lengths[slot] = length;
+
+        reply.position(0);
+        reply.get(templates, slot * TEMPLATE, length);
+        reply.position(0);
+        stored++;
+    }
+
+    private int slot(long high, long low, int port) {
+        long h = (high * 31 + low) * 31 + port;
+        return (int) ((h * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return "lookups=" + lookups +
+                " hits=" + hits +
+                " rate=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%" +
+                " stale=" + stale +
+                " stored=" + stored;
+    }
+}